@@ -0,0 +1,65 @@
+package io.slingr.services.proxy;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every latency of a run so percentiles are exact; a long per request is small enough for
+ * the runs of the load test (one million requests take 8 MB).
+ */
+class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int size = 0;
+    private long errors = 0;
+
+    synchronized void record(long elapsedNanos, boolean failed) {
+        if(size == samples.length){
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = elapsedNanos;
+        if(failed){
+            errors++;
+        }
+    }
+
+    synchronized Summary summary() {
+        final long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        return new Summary(sorted, errors);
+    }
+
+    static class Summary {
+        private final long[] sorted;
+        final long count;
+        final long errors;
+
+        private Summary(long[] sorted, long errors) {
+            this.sorted = sorted;
+            this.count = sorted.length;
+            this.errors = errors;
+        }
+
+        /** Latency in milliseconds below which <code>percentile</code>% of the requests finished */
+        double percentileMillis(double percentile) {
+            if(sorted.length == 0){
+                return 0;
+            }
+            final int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(sorted.length * percentile / 100) - 1));
+            return sorted[index] / 1_000_000.0;
+        }
+
+        double maxMillis() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1_000_000.0;
+        }
+
+        double meanMillis() {
+            if(sorted.length == 0){
+                return 0;
+            }
+            double sum = 0;
+            for (long sample : sorted) {
+                sum += sample;
+            }
+            return sum / sorted.length / 1_000_000.0;
+        }
+    }
+}
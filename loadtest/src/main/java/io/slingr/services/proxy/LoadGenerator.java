@@ -0,0 +1,264 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.services.exchange.ApiUri;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.utils.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a mix of requests to the proxy at a fixed rate (open model). The latency of each request is measured
+ * from the moment it was scheduled, so a slow proxy is not hidden by the generator waiting for it; when too
+ * many requests are in flight new ones are dropped and counted instead of delaying the schedule.
+ */
+class LoadGenerator {
+    private static final String EB_URL_PREFIX = "/api";
+    private static final String DATA_STORE_URL = EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX + ApiUri.EB_PART_DATA_STORE + "/loadTest";
+    private static final String FILE_DOWNLOAD_URL = EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX + ApiUri.EB_PART_FILE + "/";
+    private static final String MULTIPART_BOUNDARY = "proxy-load-test-boundary";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    enum Operation {
+        FUNCTION("function"),
+        WEBHOOK("webhook"),
+        ASYNC_EVENT("asyncEvent"),
+        SYNC_EVENT("syncEvent"),
+        DATA_STORE("dataStore"),
+        FILE("file");
+
+        final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+
+        static Operation fromKey(String key) {
+            for (Operation operation : values()) {
+                if(operation.key.equalsIgnoreCase(key)){
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unknown operation [%s], valid ones are %s", key,
+                    Arrays.stream(values()).map(operation -> operation.key).toList()));
+        }
+    }
+
+    private final HttpClient client;
+    private final String proxyUrl;
+    private final String serviceToken;
+    private final String proxyToken;
+    private final String functionPath;
+    private final String webhookPath;
+    private final Operation[] wheel;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final String payload;
+    private final byte[] multipartFile;
+
+    private final Map<Operation, LatencyRecorder> recorders = new EnumMap<>(Operation.class);
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong dataStoreSequence = new AtomicLong();
+    private final AtomicLong fileSequence = new AtomicLong();
+    private volatile String lastFileId;
+
+    LoadGenerator(HttpClient client, String proxyUrl, String serviceToken, String proxyToken, String functionPath, String webhookPath,
+                  Map<Operation, Integer> mix, int maxInFlight, int payloadSize, int fileSize) {
+        this.client = client;
+        this.proxyUrl = proxyUrl;
+        this.serviceToken = serviceToken;
+        this.proxyToken = proxyToken;
+        this.functionPath = functionPath;
+        this.webhookPath = webhookPath;
+        this.wheel = wheel(mix);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.payload = StubServer.jsonPayload(payloadSize).toString();
+        this.multipartFile = multipartFile(fileSize);
+    }
+
+    /** Each operation appears in the wheel as many times as its weight, so a random slot follows the mix */
+    private static Operation[] wheel(Map<Operation, Integer> mix) {
+        final List<Operation> slots = new ArrayList<>();
+        mix.forEach((operation, weight) -> {
+            for (int i = 0; i < weight; i++) {
+                slots.add(operation);
+            }
+        });
+        if(slots.isEmpty()){
+            throw new IllegalArgumentException("The mix of operations is empty");
+        }
+        return slots.toArray(new Operation[0]);
+    }
+
+    private static byte[] multipartFile(int size) {
+        final byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 'x');
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(size + 256);
+        body.writeBytes(("--" + MULTIPART_BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + Parameter.FILE_UPLOAD_PARAMETER + "\"; filename=\"loadtest.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(content);
+        body.writeBytes(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    /** Sends requests at <code>rps</code> requests per second during <code>duration</code> and waits for the pending ones */
+    Result run(int rps, Duration duration) throws InterruptedException {
+        recorders.clear();
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new LatencyRecorder());
+        }
+        dropped.reset();
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rps);
+        final long start = System.nanoTime();
+        final long end = start + duration.toNanos();
+        for (long i = 0; ; i++) {
+            final long scheduled = start + i * interval;
+            if(scheduled >= end){
+                break;
+            }
+            final long wait = scheduled - System.nanoTime();
+            if(wait > 0){
+                LockSupport.parkNanos(wait);
+            }
+            if(!inFlight.tryAcquire()){
+                dropped.increment();
+                continue;
+            }
+            final Operation operation = wheel[ThreadLocalRandom.current().nextInt(wheel.length)];
+            final LatencyRecorder recorder = recorders.get(operation);
+            send(operation).whenComplete((status, ex) -> {
+                recorder.record(System.nanoTime() - scheduled, ex != null || status == null || status >= 400);
+                inFlight.release();
+            });
+        }
+        // pending requests are part of the run
+        if(inFlight.tryAcquire(maxInFlight, REQUEST_TIMEOUT.toSeconds(), TimeUnit.SECONDS)){
+            inFlight.release(maxInFlight);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Map<Operation, LatencyRecorder.Summary> summaries = new EnumMap<>(Operation.class);
+        recorders.forEach((operation, recorder) -> summaries.put(operation, recorder.summary()));
+        return new Result(summaries, dropped.sum(), elapsed / 1_000_000_000.0);
+    }
+
+    private CompletableFuture<Integer> send(Operation operation) {
+        switch (operation) {
+            case FUNCTION:
+                return send(post(functionPath, proxyToken, Json.map()
+                        .set(Parameter.FUNCTION_NAME, "loadTest")
+                        .set(Parameter.PARAMS, Json.parse(payload))
+                        .toString()));
+            case WEBHOOK:
+                return send(post(webhookPath, null, payload));
+            case ASYNC_EVENT:
+                return send(post(EB_URL_PREFIX + ApiUri.EB_URL_ASYNC_EVENT, serviceToken, event()));
+            case SYNC_EVENT:
+                return send(post(EB_URL_PREFIX + ApiUri.EB_URL_SYNC_EVENT, serviceToken, event()));
+            case DATA_STORE:
+                return dataStore();
+            case FILE:
+                return file();
+            default:
+                throw new IllegalStateException(String.format("Unsupported operation [%s]", operation));
+        }
+    }
+
+    private String event() {
+        return Json.map()
+                .set(Parameter.DATE, System.currentTimeMillis())
+                .set(Parameter.EVENT_NAME, "loadTest")
+                .set(Parameter.DATA, Json.parse(payload))
+                .toString();
+    }
+
+    /** Rotates between creating documents, reading a page and counting them */
+    private CompletableFuture<Integer> dataStore() {
+        switch ((int) (dataStoreSequence.getAndIncrement() % 3)) {
+            case 0:
+                return send(post(DATA_STORE_URL, serviceToken, payload));
+            case 1:
+                return send(get(DATA_STORE_URL + "?_size=20", serviceToken));
+            default:
+                return send(get(DATA_STORE_URL + "/" + ApiUri.EB_PART_COUNT, serviceToken));
+        }
+    }
+
+    /** Alternates uploads and downloads of the last uploaded file */
+    private CompletableFuture<Integer> file() {
+        final String fileId = lastFileId;
+        if(fileId != null && fileSequence.getAndIncrement() % 2 == 1){
+            return send(get(FILE_DOWNLOAD_URL + fileId, serviceToken));
+        }
+        final HttpRequest request = request(EB_URL_PREFIX + ApiUri.EB_URL_FILE_UPLOAD, serviceToken)
+                .header(Parameter.CONTENT_TYPE, "multipart/form-data; boundary=" + MULTIPART_BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(multipartFile))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if(response.statusCode() < 400){
+                        final Json body = Json.parse(response.body());
+                        if(body != null && body.string("fileId") != null){
+                            lastFileId = body.string("fileId");
+                        }
+                    }
+                    return response.statusCode();
+                });
+    }
+
+    private CompletableFuture<Integer> send(HttpRequest request) {
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(HttpResponse::statusCode);
+    }
+
+    private HttpRequest get(String path, String token) {
+        return request(path, token).GET().build();
+    }
+
+    private HttpRequest post(String path, String token, String body) {
+        return request(path, token)
+                .header(Parameter.CONTENT_TYPE, "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private HttpRequest.Builder request(String path, String token) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(proxyUrl + path)).timeout(REQUEST_TIMEOUT);
+        if(token != null){
+            builder.header(Parameter.TOKEN, token);
+        }
+        return builder;
+    }
+
+    static class Result {
+        final Map<Operation, LatencyRecorder.Summary> operations;
+        final long dropped;
+        final double elapsedSeconds;
+
+        Result(Map<Operation, LatencyRecorder.Summary> operations, long dropped, double elapsedSeconds) {
+            this.operations = operations;
+            this.dropped = dropped;
+            this.elapsedSeconds = elapsedSeconds;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>End-to-end load test of the proxy. It starts a {@link StubService} in place of <code>serviceUri</code>, a
+ * {@link StubBroker} in place of the extension broker and the proxy itself as a child process wired to both,
+ * then drives a mix of requests at a target rate and reports throughput, latency percentiles and the heap
+ * of the proxy. Everything runs on the local box, without network access.
+ *
+ * <p>Options are given as <code>--name=value</code>; run with <code>--help</code> to list them.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println();
+            System.err.println(Options.usage());
+            System.exit(2);
+            return;
+        }
+        if(options.help){
+            System.out.println(Options.usage());
+            return;
+        }
+
+        final StubService service = new StubService(options.servicePort, options.serviceLatency, options.serviceJitter,
+                options.serviceErrorRate, options.payloadSize);
+        final StubBroker broker = new StubBroker(options.brokerPort, options.brokerLatency, options.brokerJitter,
+                options.brokerErrorRate, options.fileSize);
+        final HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors())))
+                .build();
+        Process proxy = null;
+        try {
+            service.start();
+            broker.start();
+
+            final String proxyUrl = options.proxyUrl != null ? options.proxyUrl : "http://localhost:" + options.proxyPort;
+            if(options.proxyUrl == null){
+                proxy = startProxy(options);
+            }
+            final ProxyMonitor monitor = new ProxyMonitor(client, proxyUrl, options.serviceToken);
+            waitUntilReady(monitor, proxy);
+
+            final LoadGenerator generator = new LoadGenerator(client, proxyUrl, options.serviceToken, options.proxyToken,
+                    options.functionPath, options.webhookPath, options.mix, options.maxInFlight, options.payloadSize, options.fileSize);
+            if(options.warmup > 0){
+                System.out.printf("Warming up for %d s at %d req/s%n", options.warmup, options.rps);
+                generator.run(options.rps, Duration.ofSeconds(options.warmup));
+            }
+            System.out.printf("Running for %d s at %d req/s with mix %s%n", options.duration, options.rps, options.mix);
+            monitor.start();
+            final LoadGenerator.Result result = generator.run(options.rps, Duration.ofSeconds(options.duration));
+            monitor.stop();
+
+            final Json report = report(options, result, monitor.summary(), service.stats(), broker.stats());
+            print(report);
+            if(options.output != null){
+                Files.write(Paths.get(options.output), report.toString().getBytes(StandardCharsets.UTF_8));
+                System.out.printf("Report written to [%s]%n", options.output);
+            }
+        } finally {
+            if(proxy != null){
+                proxy.destroy();
+                if(!proxy.waitFor(10, TimeUnit.SECONDS)){
+                    proxy.destroyForcibly();
+                }
+            }
+            service.stop();
+            broker.stop();
+        }
+        System.exit(0);
+    }
+
+    /** Starts the proxy with the same JVM, pointing it to the stub service and the stub broker */
+    private static Process startProxy(Options options) throws IOException {
+        final Json serviceConfig = Json.map()
+                .set("serviceUri", "http://localhost:" + options.servicePort)
+                .set("serviceToken", options.serviceToken);
+        if(options.proxyConfig != null){
+            Json.parse(options.proxyConfig).forEachMap(serviceConfig::set);
+        }
+
+        final Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("_webservices_port", String.valueOf(options.proxyPort));
+        properties.put("_extension_broker_api", "http://localhost:" + options.brokerPort + "/api");
+        properties.put("_token", options.proxyToken);
+        properties.put("_local_deployment", "true");
+        properties.put("_debug", "false");
+        properties.put("_service_config", serviceConfig.toString());
+
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if(!options.proxyJvmArgs.isBlank()){
+            command.addAll(Arrays.asList(options.proxyJvmArgs.trim().split("\\s+")));
+        }
+        properties.forEach((key, value) -> command.add("-D" + key + "=" + value));
+        command.add("-jar");
+        command.add(options.proxyJar);
+
+        final ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(options.proxyLog));
+        builder.environment().putAll(properties);
+        System.out.printf("Starting proxy [%s], output in [%s]%n", options.proxyJar, options.proxyLog);
+        return builder.start();
+    }
+
+    private static void waitUntilReady(ProxyMonitor monitor, Process proxy) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (monitor.stats() == null) {
+            if(proxy != null && !proxy.isAlive()){
+                throw new IllegalStateException(String.format("Proxy exited with code [%s], check its output", proxy.exitValue()));
+            }
+            if(System.nanoTime() > deadline){
+                throw new IllegalStateException("Proxy is not answering after 60 seconds");
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    private static Json report(Options options, LoadGenerator.Result result, Json proxy, Json service, Json broker) {
+        final Json operations = Json.map();
+        long requests = 0;
+        long errors = 0;
+        for (Map.Entry<LoadGenerator.Operation, LatencyRecorder.Summary> entry : result.operations.entrySet()) {
+            final LatencyRecorder.Summary summary = entry.getValue();
+            if(summary.count == 0){
+                continue;
+            }
+            requests += summary.count;
+            errors += summary.errors;
+            operations.set(entry.getKey().key, Json.map()
+                    .set("requests", summary.count)
+                    .set("errors", summary.errors)
+                    .set("throughput", summary.count / result.elapsedSeconds)
+                    .set("meanMillis", summary.meanMillis())
+                    .set("p50Millis", summary.percentileMillis(50))
+                    .set("p90Millis", summary.percentileMillis(90))
+                    .set("p99Millis", summary.percentileMillis(99))
+                    .set("p999Millis", summary.percentileMillis(99.9))
+                    .set("maxMillis", summary.maxMillis()));
+        }
+        return Json.map()
+                .set("targetRps", options.rps)
+                .set("durationSeconds", result.elapsedSeconds)
+                .set("requests", requests)
+                .set("errors", errors)
+                .set("dropped", result.dropped)
+                .set("throughput", requests / result.elapsedSeconds)
+                .set("operations", operations)
+                .set("proxy", proxy)
+                .set("stubService", service)
+                .set("stubBroker", broker);
+    }
+
+    private static void print(Json report) {
+        System.out.println();
+        System.out.printf("%-12s %10s %8s %10s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "requests", "errors", "req/s", "mean", "p50", "p90", "p99", "p99.9", "max (ms)");
+        final Json operations = report.json("operations");
+        for (String operation : operations.keys()) {
+            final Json stats = operations.json(operation);
+            System.out.printf("%-12s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation,
+                    stats.longInteger("requests"), stats.longInteger("errors"), number(stats, "throughput"),
+                    number(stats, "meanMillis"), number(stats, "p50Millis"), number(stats, "p90Millis"),
+                    number(stats, "p99Millis"), number(stats, "p999Millis"), number(stats, "maxMillis"));
+        }
+        System.out.printf("%-12s %10d %8d %10.1f%n", "total", report.longInteger("requests"), report.longInteger("errors"),
+                number(report, "throughput"));
+        System.out.printf("Dropped (too many requests in flight): %d%n", report.longInteger("dropped"));
+
+        final Json proxy = report.json("proxy");
+        System.out.printf("Proxy heap: %.1f MB max used, %.1f MB mean used, %.1f MB committed, %.1f MB max; GC: %d collections, %d ms%n",
+                megabytes(proxy, "heapUsedMax"), megabytes(proxy, "heapUsedMean"), megabytes(proxy, "heapCommitted"),
+                megabytes(proxy, "heapMax"), proxy.longInteger("gcCount"), proxy.longInteger("gcTimeMillis"));
+        System.out.printf("Stub service: %s%n", report.json("stubService"));
+        System.out.printf("Stub broker: %s%n", report.json("stubBroker"));
+    }
+
+    private static double number(Json json, String key) {
+        final Object value = json.object(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static double megabytes(Json json, String key) {
+        return number(json, key) / (1024 * 1024);
+    }
+
+    static class Options {
+        boolean help = false;
+        String proxyJar = "../target/proxy-1.0-SNAPSHOT.jar";
+        String proxyJvmArgs = "-Xmx512m";
+        String proxyLog = "target/proxy.log";
+        String proxyConfig = null;
+        String proxyUrl = null;
+        int proxyPort = 10000;
+        int servicePort = 10001;
+        int brokerPort = 2255;
+        String serviceToken = "load-test-service-token";
+        String proxyToken = "loadtest/dev/proxy";
+        String functionPath = "/api/function";
+        String webhookPath = "/loadtest";
+        int rps = 200;
+        int duration = 60;
+        int warmup = 10;
+        int maxInFlight = 512;
+        Map<LoadGenerator.Operation, Integer> mix = mix("function:30,webhook:30,asyncEvent:10,syncEvent:5,dataStore:20,file:5");
+        int payloadSize = 1024;
+        int fileSize = 64 * 1024;
+        long serviceLatency = 20;
+        long serviceJitter = 10;
+        double serviceErrorRate = 0;
+        long brokerLatency = 5;
+        long brokerJitter = 5;
+        double brokerErrorRate = 0;
+        String output = null;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (String arg : args) {
+                if("--help".equals(arg) || "-h".equals(arg)){
+                    options.help = true;
+                    continue;
+                }
+                final int separator = arg.indexOf('=');
+                if(!arg.startsWith("--") || separator < 0){
+                    throw new IllegalArgumentException(String.format("Invalid option [%s], use --name=value", arg));
+                }
+                final String name = arg.substring(2, separator);
+                final String value = arg.substring(separator + 1);
+                try {
+                    switch (name) {
+                        case "proxy-jar": options.proxyJar = value; break;
+                        case "proxy-jvm-args": options.proxyJvmArgs = value; break;
+                        case "proxy-log": options.proxyLog = value; break;
+                        case "proxy-config": options.proxyConfig = value; break;
+                        case "proxy-url": options.proxyUrl = value; break;
+                        case "proxy-port": options.proxyPort = Integer.parseInt(value); break;
+                        case "service-port": options.servicePort = Integer.parseInt(value); break;
+                        case "broker-port": options.brokerPort = Integer.parseInt(value); break;
+                        case "service-token": options.serviceToken = value; break;
+                        case "proxy-token": options.proxyToken = value; break;
+                        case "function-path": options.functionPath = value; break;
+                        case "webhook-path": options.webhookPath = value; break;
+                        case "rps": options.rps = Integer.parseInt(value); break;
+                        case "duration": options.duration = Integer.parseInt(value); break;
+                        case "warmup": options.warmup = Integer.parseInt(value); break;
+                        case "max-in-flight": options.maxInFlight = Integer.parseInt(value); break;
+                        case "mix": options.mix = mix(value); break;
+                        case "payload-size": options.payloadSize = Integer.parseInt(value); break;
+                        case "file-size": options.fileSize = Integer.parseInt(value); break;
+                        case "service-latency": options.serviceLatency = Long.parseLong(value); break;
+                        case "service-jitter": options.serviceJitter = Long.parseLong(value); break;
+                        case "service-error-rate": options.serviceErrorRate = Double.parseDouble(value); break;
+                        case "broker-latency": options.brokerLatency = Long.parseLong(value); break;
+                        case "broker-jitter": options.brokerJitter = Long.parseLong(value); break;
+                        case "broker-error-rate": options.brokerErrorRate = Double.parseDouble(value); break;
+                        case "output": options.output = value; break;
+                        default: throw new IllegalArgumentException(String.format("Unknown option [%s]", name));
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(String.format("Invalid number [%s] for option [%s]", value, name));
+                }
+            }
+            if(options.rps <= 0 || options.duration <= 0 || options.maxInFlight <= 0){
+                throw new IllegalArgumentException("Options rps, duration and max-in-flight must be positive");
+            }
+            return options;
+        }
+
+        /** Parses <code>operation:weight</code> pairs separated by commas */
+        static Map<LoadGenerator.Operation, Integer> mix(String value) {
+            final Map<LoadGenerator.Operation, Integer> mix = new EnumMap<>(LoadGenerator.Operation.class);
+            for (String entry : value.split(",")) {
+                final String[] parts = entry.trim().split(":");
+                if(parts.length != 2){
+                    throw new IllegalArgumentException(String.format("Invalid mix entry [%s], use operation:weight", entry));
+                }
+                final int weight = Integer.parseInt(parts[1].trim());
+                if(weight < 0){
+                    throw new IllegalArgumentException(String.format("Invalid weight [%s] in mix entry [%s]", weight, entry));
+                }
+                if(weight > 0){
+                    mix.put(LoadGenerator.Operation.fromKey(parts[0].trim()), weight);
+                }
+            }
+            return mix;
+        }
+
+        static String usage() {
+            return String.join(System.lineSeparator(),
+                    "Usage: java -jar target/loadtest.jar [--name=value ...]",
+                    "",
+                    "Proxy",
+                    "  --proxy-jar         jar of the proxy to start (../target/proxy-1.0-SNAPSHOT.jar)",
+                    "  --proxy-jvm-args    JVM arguments of the proxy (-Xmx512m)",
+                    "  --proxy-log         file with the output of the proxy (target/proxy.log)",
+                    "  --proxy-config      extra JSON configuration of the proxy, e.g. {\"webhookStreaming\":true}",
+                    "  --proxy-url         URL of a proxy already running; the proxy is not started",
+                    "  --proxy-port        port of the proxy (10000)",
+                    "  --service-token     service token of the proxy (load-test-service-token)",
+                    "  --proxy-token       token of the proxy in the broker (loadtest/dev/proxy)",
+                    "  --function-path     path where the proxy receives function calls (/api/function)",
+                    "  --webhook-path      path of the generic webhooks (/loadtest)",
+                    "",
+                    "Load",
+                    "  --rps               target requests per second (200)",
+                    "  --duration          seconds measured (60)",
+                    "  --warmup            seconds of warm-up, not measured (10)",
+                    "  --max-in-flight     pending requests before new ones are dropped (512)",
+                    "  --mix               weights of the operations (function:30,webhook:30,asyncEvent:10,syncEvent:5,dataStore:20,file:5)",
+                    "  --payload-size      bytes of the JSON bodies (1024)",
+                    "  --file-size         bytes of uploaded and downloaded files (65536)",
+                    "  --output            file where the report is written as JSON",
+                    "",
+                    "Stubs",
+                    "  --service-port      port of the stub service (10001)",
+                    "  --service-latency   milliseconds the stub service takes to answer (20)",
+                    "  --service-jitter    random milliseconds added to the latency of the stub service (10)",
+                    "  --service-error-rate ratio of requests failed by the stub service, from 0 to 1 (0)",
+                    "  --broker-port       port of the stub broker (2255)",
+                    "  --broker-latency    milliseconds the stub broker takes to answer (5)",
+                    "  --broker-jitter     random milliseconds added to the latency of the stub broker (5)",
+                    "  --broker-error-rate ratio of requests failed by the stub broker, from 0 to 1 (0)");
+        }
+    }
+}
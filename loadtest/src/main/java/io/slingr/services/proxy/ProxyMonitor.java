@@ -0,0 +1,104 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.utils.Json;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples <code>/api/proxy/stats</code> every second during the run to follow the heap and the garbage
+ * collections of the proxy.
+ */
+class ProxyMonitor {
+    private static final String STATS_PATH = "/api/proxy/stats";
+
+    private final HttpClient client;
+    private final HttpRequest request;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "proxy-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long samples = 0;
+    private long maxHeapUsed = 0;
+    private long sumHeapUsed = 0;
+    private long heapCommitted = 0;
+    private long heapMax = 0;
+    private Long firstGcCount;
+    private Long firstGcTimeMillis;
+    private long gcCount = 0;
+    private long gcTimeMillis = 0;
+    private Json lastStats;
+
+    ProxyMonitor(HttpClient client, String proxyUrl, String serviceToken) {
+        this.client = client;
+        this.request = HttpRequest.newBuilder(URI.create(proxyUrl + STATS_PATH))
+                .header(Parameter.TOKEN, serviceToken)
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+    }
+
+    /** Current stats of the proxy, or <code>null</code> when it does not answer */
+    Json stats() {
+        try {
+            final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 ? Json.parse(response.body()) : null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    void start() {
+        scheduler.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        sample();
+    }
+
+    private synchronized void sample() {
+        final Json stats = stats();
+        final Json jvm = stats != null ? stats.json("jvm") : null;
+        if(jvm == null){
+            return;
+        }
+        lastStats = stats;
+        final long heapUsed = jvm.longInteger("heapUsed", 0L);
+        samples++;
+        sumHeapUsed += heapUsed;
+        maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+        heapCommitted = jvm.longInteger("heapCommitted", 0L);
+        heapMax = jvm.longInteger("heapMax", 0L);
+        gcCount = jvm.longInteger("gcCount", 0L);
+        gcTimeMillis = jvm.longInteger("gcTimeMillis", 0L);
+        if(firstGcCount == null){
+            firstGcCount = gcCount;
+            firstGcTimeMillis = gcTimeMillis;
+        }
+    }
+
+    synchronized Json summary() {
+        return Json.map()
+                .set("samples", samples)
+                .set("heapUsedMax", maxHeapUsed)
+                .set("heapUsedMean", samples > 0 ? sumHeapUsed / samples : 0)
+                .set("heapCommitted", heapCommitted)
+                .set("heapMax", heapMax)
+                .set("gcCount", firstGcCount != null ? gcCount - firstGcCount : 0)
+                .set("gcTimeMillis", firstGcTimeMillis != null ? gcTimeMillis - firstGcTimeMillis : 0)
+                .setIfNotNull("proxyStats", lastStats);
+    }
+}
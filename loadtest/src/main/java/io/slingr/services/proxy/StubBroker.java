@@ -0,0 +1,66 @@
+package io.slingr.services.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.utils.Json;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Stands in for the extension broker of the application (<code>_extension_broker_api</code>). Paths are
+ * matched loosely (<code>file</code> and <code>data</code> fragments) so it answers the requests of the
+ * services framework without depending on the exact routes of the platform:
+ * <ul>
+ *     <li>file downloads get the binary payload and uploads get a new file id</li>
+ *     <li>data store queries get a page of documents and writes get the saved document</li>
+ *     <li>anything else (events, logs, locks) gets an empty JSON object</li>
+ * </ul>
+ */
+class StubBroker extends StubServer {
+    private static final int DATA_STORE_PAGE_SIZE = 20;
+
+    private final Json documents;
+
+    StubBroker(int port, long latencyMillis, long jitterMillis, double errorRate, int payloadSize) throws IOException {
+        super("stub-broker", port, latencyMillis, jitterMillis, errorRate, payloadSize);
+
+        final Json items = Json.list();
+        for (int i = 0; i < DATA_STORE_PAGE_SIZE; i++) {
+            items.add(Json.map()
+                    .set("_id", "document-" + i)
+                    .set("name", "Document " + i)
+                    .set("value", i));
+        }
+        this.documents = Json.map()
+                .set(Parameter.DATA_STORE_ITEMS, items)
+                .set(Parameter.DATA_STORE_TOTAL, DATA_STORE_PAGE_SIZE);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange, byte[] body) throws IOException {
+        final String path = exchange.getRequestURI().getPath().toLowerCase(Locale.ROOT);
+        final String method = exchange.getRequestMethod();
+
+        if(path.contains("file")){
+            if("GET".equals(method)){
+                send(exchange, 200, BINARY_CONTENT_TYPE, binaryPayload);
+            } else {
+                sendJson(exchange, Json.map().set("fileId", UUID.randomUUID().toString()));
+            }
+        } else if(path.contains("data")){
+            if("GET".equals(method)){
+                sendJson(exchange, documents);
+            } else if("DELETE".equals(method)){
+                sendJson(exchange, Json.map().set(Parameter.DATA_STORE_RESULT, true));
+            } else {
+                final Json document = body.length > 0 ? Json.parse(new String(body, StandardCharsets.UTF_8)) : Json.map();
+                sendJson(exchange, (document != null ? document : Json.map()).set("_id", UUID.randomUUID().toString()));
+            }
+        } else {
+            sendJson(exchange, Json.map());
+        }
+    }
+}
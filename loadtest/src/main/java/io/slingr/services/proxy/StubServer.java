@@ -0,0 +1,138 @@
+package io.slingr.services.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.slingr.services.utils.Json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local HTTP server used in place of a real peer of the proxy. Every request waits for the configured
+ * latency (plus a random jitter) and fails with a <code>503</code> according to the error rate before
+ * it is answered by {@link #handle(HttpExchange, byte[])}.
+ */
+abstract class StubServer {
+    protected static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    protected static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    private final String name;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /** JSON document of about <code>payloadSize</code> bytes */
+    protected final byte[] jsonPayload;
+    /** Binary content of <code>payloadSize</code> bytes */
+    protected final byte[] binaryPayload;
+
+    StubServer(String name, int port, long latencyMillis, long jitterMillis, double errorRate, int payloadSize) throws IOException {
+        this.name = name;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.jsonPayload = jsonPayload(payloadSize).toString().getBytes(StandardCharsets.UTF_8);
+        this.binaryPayload = new byte[payloadSize];
+        Arrays.fill(binaryPayload, (byte) 'x');
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::dispatch);
+    }
+
+    void start(){
+        server.start();
+    }
+
+    void stop(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** Answers the request; the body of the request was already read */
+    protected abstract void handle(HttpExchange exchange, byte[] body) throws IOException;
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            final byte[] body = readBody(exchange.getRequestBody());
+            bytesReceived.add(body.length);
+
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if(delay > 0){
+                Thread.sleep(delay);
+            }
+            if(errorRate > 0 && random.nextDouble() < errorRate){
+                failures.increment();
+                send(exchange, 503, JSON_CONTENT_TYPE, Json.map().set("error", "Error simulated by the " + name).toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            handle(exchange, body);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, JSON_CONTENT_TYPE, new byte[0]);
+        } catch (Exception ex) {
+            send(exchange, 500, JSON_CONTENT_TYPE, Json.map().set("error", String.valueOf(ex.getMessage())).toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    protected static void send(HttpExchange exchange, int status, String contentType, byte[] content) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, content.length == 0 ? -1 : content.length);
+        if(content.length > 0){
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(content);
+            }
+        }
+    }
+
+    protected static void sendJson(HttpExchange exchange, Json content) throws IOException {
+        send(exchange, 200, JSON_CONTENT_TYPE, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readBody(InputStream is) throws IOException {
+        try (is) {
+            return is.readAllBytes();
+        }
+    }
+
+    /** JSON document of about <code>size</code> bytes */
+    static Json jsonPayload(int size){
+        final Json payload = Json.map();
+        final StringBuilder data = new StringBuilder(Math.max(0, size));
+        while (data.length() < size - 12) {
+            data.append("0123456789abcdef", 0, Math.min(16, size - 12 - data.length()));
+        }
+        return payload.set("data", data.toString());
+    }
+
+    Json stats(){
+        return Json.map()
+                .set("requests", requests.sum())
+                .set("simulatedErrors", failures.sum())
+                .set("bytesReceived", bytesReceived.sum());
+    }
+}
@@ -0,0 +1,29 @@
+package io.slingr.services.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import io.slingr.services.services.exchange.ApiUri;
+import io.slingr.services.utils.Json;
+
+import java.io.IOException;
+
+/**
+ * Stands in for the local service of the developer (<code>serviceUri</code>): it answers the configuration
+ * and function calls forwarded by the proxy, and any other path as a generic webhook with a JSON body.
+ */
+class StubService extends StubServer {
+
+    StubService(int port, long latencyMillis, long jitterMillis, double errorRate, int payloadSize) throws IOException {
+        super("stub-service", port, latencyMillis, jitterMillis, errorRate, payloadSize);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange, byte[] body) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        if(path.endsWith(ApiUri.URL_CONFIGURATION)){
+            sendJson(exchange, Json.map());
+        } else {
+            // function responses and webhooks get the same payload
+            send(exchange, 200, JSON_CONTENT_TYPE, jsonPayload);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Access log of the generic webhooks forwarded by the proxy.
+ * <p>
+ * Requests are queued in a bounded buffer and formatted and written by a background thread, so the request
+ * thread never waits for the log. When the buffer is full the entry is dropped. Requests can be sampled by
+ * path prefix. Bodies are truncated when they are queued, so the buffer never holds whole bodies, and
+ * sensitive fields are masked when they are written. Full bodies are kept and written only when the
+ * <code>io.slingr.services.proxy.AccessLog</code> logger is at debug level.
+ */
+public class AccessLog {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    public static final int DEFAULT_MAX_BODY_LENGTH = 1024;
+    private static final int BUFFER_SIZE = 4096;
+    private static final Pattern SENSITIVE_FIELDS = Pattern.compile(
+            "(\"(?:password|passwd|secret|token|apiKey|api_key|accessToken|access_token|authorization)\"\\s*:\\s*)\"[^\"]*(?:\"|$)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final int maxBodyLength;
+    private final Map<String, Double> sampling;
+    private final BlockingQueue<Entry> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private final Thread writer;
+
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param sampling comma separated list of <code>pathPrefix=rate</code>, where rate is between 0 and 1;
+     *                 paths that don't match any prefix are always logged
+     */
+    public AccessLog(int maxBodyLength, String sampling) {
+        this.maxBodyLength = maxBodyLength;
+        this.sampling = parseSampling(sampling);
+        this.writer = new Thread(this::write, "proxy-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Queues the request to be logged; only the part of the body that is going to be written is kept */
+    public void request(Object method, String path, Json parameters, Object body) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+        if (!sampled(path)) {
+            sampledOut.increment();
+            return;
+        }
+        if (!buffer.offer(entry(method, path, parameters, body))) {
+            dropped.increment();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        writer.interrupt();
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("logged", logged.sum())
+                .set("dropped", dropped.sum())
+                .set("sampledOut", sampledOut.sum())
+                .set("queued", buffer.size());
+    }
+
+    private boolean sampled(String path) {
+        if (sampling.isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<String, Double> rule : sampling.entrySet()) {
+            if (path.startsWith(rule.getKey())) {
+                return ThreadLocalRandom.current().nextDouble() < rule.getValue();
+            }
+        }
+        return true;
+    }
+
+    private void write() {
+        final List<Entry> entries = new ArrayList<>();
+        while (running || !buffer.isEmpty()) {
+            try {
+                final Entry first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                entries.add(first);
+                buffer.drainTo(entries);
+                for (Entry entry : entries) {
+                    logger.info(format(entry));
+                    logged.increment();
+                }
+            } catch (InterruptedException ex) {
+                if (!running) {
+                    buffer.drainTo(entries);
+                    entries.forEach(entry -> logger.info(format(entry)));
+                    return;
+                }
+            } catch (Exception ex) {
+                logger.warn(String.format("Exception when try to write access log: %s", ex.getMessage()));
+            } finally {
+                entries.clear();
+            }
+        }
+    }
+
+    private String format(Entry entry) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("Generic web service request [").append(entry.method).append(' ').append(entry.path);
+        final String query = entry.parameters != null && entry.parameters.isNotEmpty() ? entry.parameters.toString() : null;
+        if (StringUtils.isNotBlank(query)) {
+            sb.append('?').append(query);
+        }
+        sb.append(']');
+        if (entry.body != null) {
+            sb.append(" - body [").append(body(entry.body));
+            if (entry.bodyLength > entry.body.length()) {
+                sb.append(String.format("... (%s chars)", entry.bodyLength));
+            }
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    /** Entry with a copy of the part of the body that is logged, so queued entries do not keep whole bodies */
+    private Entry entry(Object method, String path, Json parameters, Object body) {
+        if (body == null || body instanceof InputStream) {
+            return new Entry(method, path, parameters, body != null ? "(stream)" : null, 0);
+        }
+        final String content = String.valueOf(body);
+        final boolean truncated = !logger.isDebugEnabled() && content.length() > maxBodyLength;
+        return new Entry(method, path, parameters, truncated ? content.substring(0, maxBodyLength) : content, content.length());
+    }
+
+    private String body(String content) {
+        if (logger.isDebugEnabled()) {
+            return content;
+        }
+        // a value cut by the truncation is masked too
+        return SENSITIVE_FIELDS.matcher(content).replaceAll("$1\"***\"");
+    }
+
+    private static Map<String, Double> parseSampling(String sampling) {
+        final Map<String, Double> rules = new LinkedHashMap<>();
+        if (StringUtils.isNotBlank(sampling)) {
+            for (String rule : sampling.split(",")) {
+                final String[] parts = rule.trim().split("=");
+                if (parts.length == 2) {
+                    try {
+                        rules.put(parts[0].trim(), Math.max(0, Math.min(1, Double.parseDouble(parts[1].trim()))));
+                    } catch (NumberFormatException ex) {
+                        logger.warn(String.format("Invalid access log sampling rule [%s]", rule));
+                    }
+                }
+            }
+        }
+        return rules;
+    }
+
+    private static class Entry {
+        private final Object method;
+        private final String path;
+        private final Json parameters;
+        private final String body;
+        /** Length of the whole body, longer than <code>body</code> when it was truncated */
+        private final int bodyLength;
+
+        Entry(Object method, String path, Json parameters, String body, int bodyLength) {
+            this.method = method;
+            this.path = path;
+            this.parameters = parameters;
+            this.body = body;
+            this.bodyLength = bodyLength;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read timeout for the calls to the service in development based on the observed latency.
+ * <p>
+ * The timeout is a multiple of the p99 latency of the last successful calls, kept between a minimum and
+ * the configured maximum. The maximum is used until enough calls have been observed.
+ */
+public class AdaptiveTimeout {
+    private static final int SAMPLES = 256;
+    private static final int MINIMUM_SAMPLES = 32;
+    private static final int RECALCULATE_EVERY = 32;
+    private static final int P99_MULTIPLIER = 4;
+
+    private final int minTimeoutMillis;
+    private final int maxTimeoutMillis;
+    private final long[] latencies = new long[SAMPLES];
+    private int index = 0;
+    private int count = 0;
+    private int recorded = 0;
+
+    private volatile long p99Millis = 0;
+    private volatile int timeoutMillis;
+
+    public AdaptiveTimeout(int minTimeoutMillis, int maxTimeoutMillis) {
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.timeoutMillis = maxTimeoutMillis;
+    }
+
+    public int timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public synchronized void record(long elapsedNanos) {
+        latencies[index] = elapsedNanos;
+        index = (index + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+        if (++recorded % RECALCULATE_EVERY == 0 && count >= MINIMUM_SAMPLES) {
+            final long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            p99Millis = TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(count * 0.99) - 1]);
+            timeoutMillis = (int) Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, p99Millis * P99_MULTIPLIER));
+        }
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("p99Millis", p99Millis)
+                .set("timeoutMillis", timeoutMillis);
+    }
+}
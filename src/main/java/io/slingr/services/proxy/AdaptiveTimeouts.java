@@ -0,0 +1,56 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One {@link AdaptiveTimeout} for each kind of operation sent to the service, like the configuration or each
+ * webhook path, so a slow operation is not cut by the timeout learned from fast ones.
+ * <p>
+ * Operations without a key, like function calls whose duration depends on the function, and operations seen
+ * after {@link #MAX_OPERATIONS} different ones always use the maximum timeout.
+ */
+public class AdaptiveTimeouts {
+    static final int MAX_OPERATIONS = 64;
+
+    private final int minTimeoutMillis;
+    private final int maxTimeoutMillis;
+    private final Map<String, AdaptiveTimeout> timeouts = new ConcurrentHashMap<>();
+
+    public AdaptiveTimeouts(int minTimeoutMillis, int maxTimeoutMillis) {
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+    }
+
+    public int timeoutMillis(String operation) {
+        final AdaptiveTimeout timeout = timeout(operation);
+        return timeout != null ? timeout.timeoutMillis() : maxTimeoutMillis;
+    }
+
+    /** Records a call that got an answer, or that ran until it timed out, so the timeout can grow back */
+    public void record(String operation, long elapsedNanos) {
+        final AdaptiveTimeout timeout = timeout(operation);
+        if (timeout != null) {
+            timeout.record(elapsedNanos);
+        }
+    }
+
+    public Json stats() {
+        final Json stats = Json.map();
+        timeouts.forEach((operation, timeout) -> stats.set(operation, timeout.stats()));
+        return stats;
+    }
+
+    private AdaptiveTimeout timeout(String operation) {
+        if (operation == null) {
+            return null;
+        }
+        final AdaptiveTimeout timeout = timeouts.get(operation);
+        if (timeout != null || timeouts.size() >= MAX_OPERATIONS) {
+            return timeout;
+        }
+        return timeouts.computeIfAbsent(operation, key -> new AdaptiveTimeout(minTimeoutMillis, maxTimeoutMillis));
+    }
+}
@@ -0,0 +1,206 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sync events sent in background. The caller gets a correlation id right away and collects the result later,
+ * polling for it or receiving it in a callback, so server threads are not held while the listener of the
+ * application runs.
+ * <p>
+ * Events run in a fixed pool and their results are kept in a bounded table: when it is full new events are
+ * rejected with a retryable error, and results not collected within the TTL are dropped. Callbacks are
+ * delivered by a pool of their own, so a slow callback endpoint does not hold the threads sending events;
+ * when its queue is full the result is kept for polling instead.
+ */
+public class AsyncSyncEvents {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncSyncEvents.class);
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_CALLBACK_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_PENDING = 1000;
+    public static final long DEFAULT_RESULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long MAX_POLL_WAIT_MILLIS = 30000;
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_UNKNOWN = "unknown";
+
+    private final int maxPending;
+    private final long resultTtlMillis;
+    private final ExecutorService executor;
+    private final ExecutorService callbackExecutor;
+    private final ScheduledExecutorService reaper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder callbacksDelivered = new LongAdder();
+    private final LongAdder callbacksFailed = new LongAdder();
+    private final LongAdder callbacksRejected = new LongAdder();
+
+    public AsyncSyncEvents(int concurrency, int maxPending, long resultTtlMillis) {
+        this(concurrency, DEFAULT_CALLBACK_CONCURRENCY, maxPending, resultTtlMillis);
+    }
+
+    public AsyncSyncEvents(int concurrency, int callbackConcurrency, int maxPending, long resultTtlMillis) {
+        this.maxPending = maxPending;
+        this.resultTtlMillis = resultTtlMillis;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-sync-event-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger callbackThreads = new AtomicInteger();
+        this.callbackExecutor = new ThreadPoolExecutor(callbackConcurrency, callbackConcurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPending), runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-sync-event-callback-" + callbackThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-sync-event-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::expireResults, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends the event in background and returns its correlation id. When <code>callback</code> is given it
+     * receives the result, and the result is kept for polling only if the callback fails.
+     */
+    public String submit(Supplier<Json> event, Consumer<Json> callback) {
+        if (entries.size() >= maxPending) {
+            expireResults();
+            if (entries.size() >= maxPending) {
+                rejected.increment();
+                throw ServiceException.retryable(ErrorCode.API, "Too many sync events pending, try again later");
+            }
+        }
+        final String correlationId = UUID.randomUUID().toString();
+        final Entry entry = new Entry();
+        entries.put(correlationId, entry);
+        submitted.increment();
+        executor.execute(() -> {
+            Json result;
+            try {
+                result = event.get();
+            } catch (RuntimeException ex) {
+                result = Json.map().set(Parameter.SYNC_ERROR_RESPONSE, ex.getMessage());
+            }
+            result.set("correlationId", correlationId);
+            entry.completedAt = System.currentTimeMillis();
+            entry.result.complete(result);
+            completed.increment();
+            if (callback != null) {
+                deliver(correlationId, result, callback);
+            }
+        });
+        return correlationId;
+    }
+
+    private void deliver(String correlationId, Json result, Consumer<Json> callback) {
+        try {
+            callbackExecutor.execute(() -> {
+                try {
+                    callback.accept(result);
+                    entries.remove(correlationId);
+                    callbacksDelivered.increment();
+                } catch (Exception ex) {
+                    callbacksFailed.increment();
+                    logger.warn(String.format("Exception when try to deliver result of sync event [%s], it is kept for polling: %s", correlationId, ex.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            callbacksRejected.increment();
+            logger.warn(String.format("Too many callbacks pending, result of sync event [%s] is kept for polling", correlationId));
+        }
+    }
+
+    /**
+     * Result of the event, waiting up to <code>waitMillis</code> while it is pending. A completed result is
+     * returned only once.
+     */
+    public Json poll(String correlationId, long waitMillis) {
+        final Entry entry = correlationId != null ? entries.get(correlationId) : null;
+        if (entry == null) {
+            return Json.map().set("correlationId", correlationId).set("status", STATUS_UNKNOWN);
+        }
+        try {
+            final Json result = entry.result.get(Math.min(Math.max(0, waitMillis), MAX_POLL_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+            entries.remove(correlationId, entry);
+            return result.set("status", STATUS_COMPLETED);
+        } catch (TimeoutException ex) {
+            return Json.map().set("correlationId", correlationId).set("status", STATUS_PENDING);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Json.map().set("correlationId", correlationId).set("status", STATUS_PENDING);
+        } catch (ExecutionException ex) {
+            entries.remove(correlationId, entry);
+            throw ServiceException.permanent(ErrorCode.API, String.format("Sync event [%s] failed: %s", correlationId, ex.getCause().getMessage()));
+        }
+    }
+
+    public void stop() {
+        reaper.shutdownNow();
+        executor.shutdownNow();
+        callbackExecutor.shutdownNow();
+        entries.clear();
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("entries", entries.size())
+                .set("maxPending", maxPending)
+                .set("submitted", submitted.sum())
+                .set("completed", completed.sum())
+                .set("rejected", rejected.sum())
+                .set("expired", expired.sum())
+                .set("callbacksDelivered", callbacksDelivered.sum())
+                .set("callbacksFailed", callbacksFailed.sum())
+                .set("callbacksRejected", callbacksRejected.sum());
+    }
+
+    /** Drops results nobody collected within the TTL; events still running are kept */
+    private void expireResults() {
+        final long limit = System.currentTimeMillis() - resultTtlMillis;
+        entries.entrySet().removeIf(item -> {
+            final boolean remove = item.getValue().completedAt > 0 && item.getValue().completedAt < limit;
+            if (remove) {
+                expired.increment();
+            }
+            return remove;
+        });
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Json> result = new CompletableFuture<>();
+        private volatile long completedAt = 0;
+    }
+}
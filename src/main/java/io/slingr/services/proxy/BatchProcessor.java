@@ -0,0 +1,95 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Runs a task for every item of a batch, in chunks so only a chunk of the batch is in memory at a time.
+ * <p>
+ * Items of a chunk are processed in parallel, except the ones with the same key (for example the id of a
+ * document): those run one after the other in the order of the batch, so the last one wins instead of racing.
+ */
+class BatchProcessor {
+    private final Executor executor;
+    private final int chunkSize;
+
+    BatchProcessor(Executor executor, int chunkSize) {
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param keyOf key of an item, or <code>null</code> when it can run in parallel with any other item
+     * @return the number of succeeded and failed items plus one result per item
+     */
+    Json process(Iterator<?> items, String successKey, Function<Object, String> keyOf, Function<Object, Json> task) {
+        final Json results = Json.list();
+        final List<Object> chunk = new ArrayList<>(chunkSize);
+        int succeeded = 0;
+        int index = 0;
+
+        while (items.hasNext()) {
+            chunk.add(items.next());
+            if (chunk.size() == chunkSize || !items.hasNext()) {
+                succeeded += processChunk(chunk, index, results, successKey, keyOf, task);
+                index += chunk.size();
+                chunk.clear();
+            }
+        }
+
+        return Json.map()
+                .set(successKey, succeeded)
+                .set("failed", index - succeeded)
+                .set("items", results);
+    }
+
+    private int processChunk(List<Object> chunk, int offset, Json results, String successKey,
+                             Function<Object, String> keyOf, Function<Object, Json> task) {
+        final List<CompletableFuture<Json>> futures = new ArrayList<>(chunk.size());
+        final Map<String, CompletableFuture<Json>> lastByKey = new HashMap<>();
+        for (Object item : chunk) {
+            final String key = keyOf != null ? key(keyOf, item) : null;
+            final CompletableFuture<Json> previous = key != null ? lastByKey.get(key) : null;
+            final CompletableFuture<Json> future = previous == null
+                    ? CompletableFuture.supplyAsync(() -> task.apply(item), executor)
+                    : previous.handle((result, error) -> item).thenApplyAsync(task, executor);
+            if (key != null) {
+                lastByKey.put(key, future);
+            }
+            futures.add(future);
+        }
+
+        int succeeded = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            Json result;
+            try {
+                result = futures.get(i).join();
+                result = (result != null ? result : Json.map()).set(successKey, true);
+                succeeded++;
+            } catch (CompletionException ex) {
+                final Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                result = Json.map().set(successKey, false).set("error", cause.getMessage());
+            }
+            results.add(result.set("index", offset + i));
+        }
+        return succeeded;
+    }
+
+    /** Invalid items have no key; they fail on their own when the task runs */
+    private static String key(Function<Object, String> keyOf, Object item) {
+        try {
+            return keyOf.apply(item);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+}
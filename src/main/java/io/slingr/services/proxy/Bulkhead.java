@@ -0,0 +1,95 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.utils.Json;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent calls of one kind, so a slow kind of request can not hold every server thread.
+ * <p>
+ * Calls over the limit wait in a bounded queue. When the queue is full, or the wait takes too long, the
+ * call fails right away with a retryable exception.
+ */
+public class Bulkhead {
+    public static final int DEFAULT_MAX_CONCURRENT = 20;
+    public static final int DEFAULT_MAX_WAITING = 100;
+    public static final int DEFAULT_MAX_WAIT_SECONDS = 30;
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxWaiting;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    public Bulkhead(String name, int maxConcurrent, int maxWaiting, int maxWaitSeconds) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = TimeUnit.SECONDS.toMillis(maxWaitSeconds);
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    public <T> T execute(Supplier<T> call) {
+        acquire();
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void execute(Runnable call) {
+        execute(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("active", maxConcurrent - permits.availablePermits())
+                .set("waiting", waiting.get())
+                .set("rejected", rejected.sum())
+                .set("maxConcurrent", maxConcurrent)
+                .set("maxWaiting", maxWaiting);
+    }
+
+    private void acquire() {
+        // the timed form honours the fairness of the semaphore, so free permits go to queued calls first
+        if (tryAcquire(0)) {
+            return;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejected.increment();
+            throw ServiceException.retryable(ErrorCode.API, String.format("Too many concurrent %s, try again later", name));
+        }
+        final boolean acquired;
+        try {
+            acquired = tryAcquire(maxWaitMillis);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            rejected.increment();
+            throw ServiceException.retryable(ErrorCode.API, String.format("Timeout waiting to process %s, try again later", name));
+        }
+    }
+
+    private boolean tryAcquire(long waitMillis) {
+        try {
+            return permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
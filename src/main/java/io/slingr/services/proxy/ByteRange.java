@@ -0,0 +1,91 @@
+package io.slingr.services.proxy;
+
+/**
+ * Single range of bytes asked in the <code>Range</code> header of a download.
+ * <p>
+ * Only one <code>bytes</code> range of a resource whose length is known can be served: for anything else the
+ * header is ignored and the whole resource is sent, as allowed by RFC 9110. Without the length the proxy could
+ * neither tell whether the range is past the end nor write a valid <code>Content-Range</code>.
+ */
+class ByteRange {
+    static final String UNIT = "bytes";
+    /** The range starts after the end of the resource */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private final long start;
+    private final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @param length length of the resource, negative when it is unknown
+     * @return the range, {@link #UNSATISFIABLE}, or <code>null</code> when the header has to be ignored
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null || length < 0) {
+            return null;
+        }
+        final String spec = header.trim();
+        if (!spec.regionMatches(true, 0, UNIT + "=", 0, UNIT.length() + 1) || spec.contains(",")) {
+            return null;
+        }
+        final String[] bounds = spec.substring(UNIT.length() + 1).split("-", -1);
+        if (bounds.length != 2) {
+            return null;
+        }
+        final long first = number(bounds[0]);
+        final long last = number(bounds[1]);
+        if (bounds[0].isBlank()) {
+            // suffix range: the last bytes of the resource
+            if (last < 0) {
+                return null;
+            }
+            if (last == 0 || length == 0) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(Math.max(0, length - last), length - 1);
+        }
+        if (first < 0 || (!bounds[1].isBlank() && (last < 0 || last < first))) {
+            return null;
+        }
+        if (first >= length) {
+            return UNSATISFIABLE;
+        }
+        return new ByteRange(first, bounds[1].isBlank() ? length - 1 : Math.min(last, length - 1));
+    }
+
+    long start() {
+        return start;
+    }
+
+    long end() {
+        return end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /** Value of the <code>Content-Range</code> header of the response */
+    String contentRange(long totalLength) {
+        return this == UNSATISFIABLE
+                ? String.format("%s */%s", UNIT, totalLength)
+                : String.format("%s %s-%s/%s", UNIT, start, end, totalLength);
+    }
+
+    /** Digits only, as signs and spaces are not valid in a range; -1 when blank or invalid */
+    private static long number(String value) {
+        final String trimmed = value.trim();
+        if (trimmed.isEmpty() || !trimmed.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(trimmed);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
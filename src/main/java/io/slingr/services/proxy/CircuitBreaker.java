@@ -0,0 +1,179 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.utils.Json;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker for the calls to the service in development.
+ * <p>
+ * The outcome of the last calls is kept in a sliding window. When too many of them failed or were slow the
+ * circuit opens and calls are rejected right away. After a while a few trial calls are let through
+ * (half-open), and the circuit closes again when all of them succeed.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MINIMUM_CALLS = 10;
+    private static final double FAILURE_RATE_THRESHOLD = 0.5;
+    private static final double SLOW_CALL_RATE_THRESHOLD = 0.8;
+    private static final long SLOW_CALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long OPEN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int HALF_OPEN_CALLS = 3;
+
+    private final long openNanos;
+
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private final boolean[] slowCalls = new boolean[WINDOW_SIZE];
+    private int windowIndex = 0;
+    private int windowCount = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenInFlight = 0;
+    private int halfOpenSucceeded = 0;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+
+    public CircuitBreaker() {
+        this(OPEN_NANOS);
+    }
+
+    /** @param openNanos time the circuit stays open before trial calls are let through */
+    CircuitBreaker(long openNanos) {
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Whether a response tells that the service, or what sits in front of it, is not handling requests:
+     * <code>502</code>, <code>503</code> or <code>504</code>. Other server errors are answers of the handlers
+     * of the service, like a webhook failing in its own logic, and say nothing about its health.
+     */
+    static boolean isFailure(int status) {
+        return status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    /** Fails right away with a retryable exception when the circuit does not allow a new call */
+    public synchronized void acquirePermission() {
+        if (state == State.OPEN) {
+            final long elapsed = System.nanoTime() - openedAt;
+            if (elapsed < openNanos) {
+                rejected.increment();
+                throw ServiceException.retryable(ErrorCode.CLIENT, String.format("Service is not available (circuit open), next try in [%s] seconds",
+                        TimeUnit.NANOSECONDS.toSeconds(openNanos - elapsed) + 1));
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenInFlight >= HALF_OPEN_CALLS) {
+                rejected.increment();
+                throw ServiceException.retryable(ErrorCode.CLIENT, "Service is not available (circuit half-open), trial calls in progress");
+            }
+            halfOpenInFlight++;
+        }
+    }
+
+    /** Records the outcome of a call that was allowed by {@link #acquirePermission()} */
+    public synchronized void onResult(boolean failure, long elapsedNanos) {
+        final boolean slow = elapsedNanos > SLOW_CALL_NANOS;
+        if (state == State.HALF_OPEN) {
+            halfOpenInFlight = Math.max(0, halfOpenInFlight - 1);
+            if (failure || slow) {
+                transitionTo(State.OPEN);
+            } else if (++halfOpenSucceeded >= HALF_OPEN_CALLS) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        failures[windowIndex] = failure;
+        slowCalls[windowIndex] = slow;
+        windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+        windowCount = Math.min(windowCount + 1, WINDOW_SIZE);
+        if (windowCount >= MINIMUM_CALLS && (rate(failures) >= FAILURE_RATE_THRESHOLD || rate(slowCalls) >= SLOW_CALL_RATE_THRESHOLD)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    /**
+     * Whether {@link #acquirePermission()} would let a call through right now, without reserving it. An open
+     * circuit whose wait is over counts as permitted, so a balancer can pick the target for the trial calls.
+     */
+    public synchronized boolean isCallPermitted() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.nanoTime() - openedAt >= openNanos;
+            case HALF_OPEN -> halfOpenInFlight < HALF_OPEN_CALLS;
+        };
+    }
+
+    /** Closes the circuit, e.g. when an active health check shows the service is back */
+    public synchronized void reset() {
+        if (state != State.CLOSED) {
+            transitionTo(State.CLOSED);
+        }
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized Json stats() {
+        return Json.map()
+                .set("state", state.name())
+                .set("failureRate", rate(failures))
+                .set("slowCallRate", rate(slowCalls))
+                .set("rejected", rejected.sum())
+                .set("opened", opened.sum())
+                .set("halfOpened", halfOpened.sum())
+                .set("closed", closed.sum());
+    }
+
+    private double rate(boolean[] outcomes) {
+        if (windowCount == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < windowCount; i++) {
+            if (outcomes[i]) {
+                count++;
+            }
+        }
+        return (double) count / windowCount;
+    }
+
+    private void transitionTo(State newState) {
+        logger.info(String.format("Circuit to Service changed from [%s] to [%s]", state, newState));
+        state = newState;
+        switch (newState) {
+            case OPEN -> {
+                openedAt = System.nanoTime();
+                opened.increment();
+            }
+            case HALF_OPEN -> {
+                halfOpenInFlight = 0;
+                halfOpenSucceeded = 0;
+                halfOpened.increment();
+            }
+            case CLOSED -> {
+                windowIndex = 0;
+                windowCount = 0;
+                closed.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Gzip compression of the bodies exchanged with the service.
+ * <p>
+ * When enabled, responses read in full by the proxy are requested with <code>Accept-Encoding: gzip</code> and
+ * decoded before they are used; streamed responses keep the encoding asked by the caller. Request bodies above the threshold are compressed only once the service advertised that it accepts gzip with an
+ * <code>Accept-Encoding</code> header in one of its responses (RFC 7694); when the service answers <code>415</code>
+ * to a compressed body, compression of requests is turned off again. Decoding stops once the content goes over
+ * a maximum size, so a small compressed body can not take all the memory of the proxy.
+ */
+public class Compression {
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 1024;
+    public static final int DEFAULT_MAX_DECOMPRESSED_BYTES = 64 * 1024 * 1024;
+    /** Initial buffer for decoded bodies; it grows as needed up to the maximum size */
+    private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
+    static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final boolean enabled;
+    private final int thresholdBytes;
+    private final int maxDecompressedBytes;
+    private volatile boolean serviceAcceptsGzip = false;
+
+    private final LongAdder requestsCompressed = new LongAdder();
+    private final LongAdder requestBytesIn = new LongAdder();
+    private final LongAdder requestBytesOut = new LongAdder();
+    private final LongAdder requestNanos = new LongAdder();
+    private final LongAdder requestsRejected = new LongAdder();
+    private final LongAdder responsesDecompressed = new LongAdder();
+    private final LongAdder responseBytesIn = new LongAdder();
+    private final LongAdder responseBytesOut = new LongAdder();
+    private final LongAdder responseNanos = new LongAdder();
+    private final LongAdder responsesTooLarge = new LongAdder();
+
+    public Compression(boolean enabled, int thresholdBytes, int maxDecompressedBytes) {
+        this.enabled = enabled;
+        this.thresholdBytes = thresholdBytes;
+        this.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Remembers whether the service accepts gzip bodies, from the <code>Accept-Encoding</code> header of its responses */
+    void negotiate(HttpResponse response) {
+        if (!enabled || serviceAcceptsGzip) {
+            return;
+        }
+        for (Header header : response.getHeaders(HttpHeaders.ACCEPT_ENCODING)) {
+            for (HeaderElement element : header.getElements()) {
+                if (GZIP.equalsIgnoreCase(element.getName())) {
+                    logger.info("Service accepts gzip bodies, requests above the threshold will be compressed");
+                    serviceAcceptsGzip = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** The service answered 415 to a compressed body, so requests are not compressed anymore */
+    void rejected() {
+        requestsRejected.increment();
+        if (serviceAcceptsGzip) {
+            logger.info("Service rejected a gzip body, requests will not be compressed");
+            serviceAcceptsGzip = false;
+        }
+    }
+
+    /**
+     * Compresses the entity when compression was negotiated and its length is known and above the threshold;
+     * otherwise it is returned as it is.
+     */
+    HttpEntity compress(HttpEntity entity) {
+        if (!enabled || !serviceAcceptsGzip || entity == null || !entity.isRepeatable()
+                || entity.getContentEncoding() != null || entity.getContentLength() < thresholdBytes) {
+            return entity;
+        }
+        final long start = System.nanoTime();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, entity.getContentLength() / 2));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE)) {
+            entity.writeTo(gzip);
+        } catch (IOException ex) {
+            logger.warn(String.format("Exception when try to compress body for Service, it is sent uncompressed: %s", ex.getMessage()));
+            return entity;
+        }
+        requestNanos.add(System.nanoTime() - start);
+        requestsCompressed.increment();
+        requestBytesIn.add(entity.getContentLength());
+        requestBytesOut.add(compressed.size());
+        return new CompressedEntity(compressed.toByteArray(), entity);
+    }
+
+    /**
+     * Replaces the entity of a gzip or deflate response by its decoded content and removes the headers that
+     * described the encoded one. Only used for responses that are read in full, so the time recorded is the
+     * time spent decoding and not waiting for the network.
+     *
+     * @throws TooLargeException when the decoded content is larger than the maximum size
+     */
+    void decompress(HttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        final Header encoding = entity != null ? entity.getContentEncoding() : null;
+        if (encoding == null) {
+            return;
+        }
+        final String coding = encoding.getValue().trim();
+        if (!GZIP.equalsIgnoreCase(coding) && !DEFLATE.equalsIgnoreCase(coding)) {
+            return;
+        }
+        final byte[] encoded = EntityUtils.toByteArray(entity);
+        final long start = System.nanoTime();
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream((int) Math.min(MAX_INITIAL_BUFFER_SIZE, encoded.length * 4L));
+        try (InputStream is = GZIP.equalsIgnoreCase(coding)
+                ? new GZIPInputStream(new ByteArrayInputStream(encoded), BUFFER_SIZE)
+                : new InflaterInputStream(new ByteArrayInputStream(encoded))) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                if (decoded.size() + read > maxDecompressedBytes) {
+                    responsesTooLarge.increment();
+                    throw new TooLargeException(String.format("Decoded response of Service is larger than [%s] bytes", maxDecompressedBytes));
+                }
+                decoded.write(buffer, 0, read);
+            }
+        }
+        responseNanos.add(System.nanoTime() - start);
+        responsesDecompressed.increment();
+        responseBytesIn.add(encoded.length);
+        responseBytesOut.add(decoded.size());
+
+        final ByteArrayEntity decodedEntity = new ByteArrayEntity(decoded.toByteArray());
+        decodedEntity.setContentType(entity.getContentType());
+        response.setEntity(decodedEntity);
+        response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+        response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("enabled", enabled)
+                .set("negotiated", serviceAcceptsGzip)
+                .set("thresholdBytes", thresholdBytes)
+                .set("maxDecompressedBytes", maxDecompressedBytes)
+                .set("requests", Json.map()
+                        .set("compressed", requestsCompressed.sum())
+                        .set("rejected", requestsRejected.sum())
+                        .set("bytesIn", requestBytesIn.sum())
+                        .set("bytesOut", requestBytesOut.sum())
+                        .set("ratio", ratio(requestBytesIn.sum(), requestBytesOut.sum()))
+                        .set("cpuMillis", requestNanos.sum() / 1_000_000))
+                .set("responses", Json.map()
+                        .set("decompressed", responsesDecompressed.sum())
+                        .set("bytesIn", responseBytesIn.sum())
+                        .set("bytesOut", responseBytesOut.sum())
+                        .set("ratio", ratio(responseBytesOut.sum(), responseBytesIn.sum()))
+                        .set("cpuMillis", responseNanos.sum() / 1_000_000)
+                        .set("tooLarge", responsesTooLarge.sum()));
+    }
+
+    /** Uncompressed bytes per compressed byte */
+    private static double ratio(long uncompressed, long compressed) {
+        return compressed > 0 ? Math.round(uncompressed * 100.0 / compressed) / 100.0 : 0;
+    }
+
+    /** The decoded content of a response is larger than the maximum size */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Gzip body that keeps the original entity, so the request can be sent again uncompressed */
+    static class CompressedEntity extends ByteArrayEntity {
+        private final HttpEntity original;
+
+        CompressedEntity(byte[] compressed, HttpEntity original) {
+            super(compressed);
+            this.original = original;
+            setContentType(original.getContentType());
+            setContentEncoding(GZIP);
+        }
+
+        HttpEntity original() {
+            return original;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the last good configuration received from the service in development.
+ * <p>
+ * While the cached copy is fresh it is returned right away. Once it expires it is still returned, and a
+ * conditional request is sent in background to revalidate it, so only the first request waits for the service.
+ * The configuration is kept serialized and every caller gets its own copy, so callers can not change the cached one.
+ */
+public class ConfigurationCache {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationCache.class);
+
+    public static final int DEFAULT_TTL_SECONDS = 30;
+
+    private final ServiceClient client;
+    private final String path;
+    private final long ttlNanos;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final ExecutorService revalidator;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private volatile Entry entry;
+
+    public ConfigurationCache(ServiceClient client, String path, int ttlSeconds) {
+        this.client = client;
+        this.path = path;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.revalidator = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-configuration-revalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns the configuration of the service, fetching it only when there is no cached copy */
+    public Json get() {
+        final Entry current = entry;
+        if (current == null) {
+            misses.increment();
+            return Json.parse(refresh(null).configuration);
+        }
+        hits.increment();
+        if (System.nanoTime() - current.fetchedAt > ttlNanos && refreshing.compareAndSet(false, true)) {
+            try {
+                revalidator.execute(() -> {
+                    try {
+                        refresh(current);
+                    } catch (Exception ex) {
+                        failures.increment();
+                        logger.warn(String.format("Exception when try to revalidate configuration from Service: %s", ex.getMessage()));
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the cache is stopping
+                refreshing.set(false);
+            }
+        }
+        return Json.parse(current.configuration);
+    }
+
+    /** Discards the cached configuration, so the next request goes to the service */
+    public void clear() {
+        entry = null;
+    }
+
+    public void stop() {
+        revalidator.shutdownNow();
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("cached", entry != null)
+                .set("hits", hits.sum())
+                .set("misses", misses.sum())
+                .set("revalidations", revalidations.sum())
+                .set("notModified", notModified.sum())
+                .set("failures", failures.sum());
+    }
+
+    private Entry refresh(Entry current) {
+        if (current != null) {
+            revalidations.increment();
+        }
+        final ServiceClient.VersionedJson response = client.getJsonIfNoneMatch(path, current != null ? current.eTag : null);
+        final Entry updated;
+        if (response.notModified() && current != null) {
+            notModified.increment();
+            updated = new Entry(current.configuration, current.eTag, current.hash);
+        } else {
+            final String configuration = String.valueOf(response.json());
+            final String hash = hash(configuration);
+            if (current != null && hash.equals(current.hash)) {
+                notModified.increment();
+                updated = new Entry(current.configuration, response.eTag(), hash);
+            } else {
+                logger.info("Configuration from Service updated");
+                updated = new Entry(configuration, response.eTag(), hash);
+            }
+        }
+        // a concurrent clear wins over a background refresh
+        if (current == null || entry == current) {
+            entry = updated;
+        }
+        return updated;
+    }
+
+    private static String hash(String configuration) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(configuration.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            return String.valueOf(configuration.hashCode());
+        }
+    }
+
+    private static class Entry {
+        private final String configuration;
+        private final String eTag;
+        private final String hash;
+        private final long fetchedAt = System.nanoTime();
+
+        Entry(String configuration, String eTag, String hash) {
+            this.configuration = configuration;
+            this.eTag = eTag;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of the documents found by id in the proxy data store.
+ * <p>
+ * Documents are scoped by data store name, expire after the configured time and the least recently used
+ * ones are discarded once the maximum size is reached. A copy is returned on every hit, so callers can
+ * modify it freely.
+ * <p>
+ * Every invalidation takes a new generation, remembered by the key until it is evicted. Readers take the
+ * generation before reading the document from the data store, and their put is dropped when the key was
+ * invalidated after that, so a document read before a concurrent save or removal is not cached again.
+ */
+public class DocumentCache {
+    public static final int DEFAULT_TTL_SECONDS = 60;
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> cache;
+    private long generation = 0;
+    /** Generation of the latest invalidation that is no longer remembered by its key */
+    private long forgottenGeneration = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder stalePuts = new LongAdder();
+
+    public DocumentCache(int maxSize, int ttlSeconds) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                final boolean evict = size() > DocumentCache.this.maxSize;
+                if (evict) {
+                    forget(eldest.getValue());
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /** Cached document, or null when it is not cached or it has expired */
+    public Json get(String dataStoreName, String documentId) {
+        final String key = key(dataStoreName, documentId);
+        final Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.document != null && System.nanoTime() - entry.cachedAt > ttlNanos) {
+                forget(cache.remove(key));
+                misses.increment();
+                return null;
+            }
+        }
+        if (entry == null || entry.document == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return Json.parse(entry.document);
+    }
+
+    /** Generation to take before reading a document that is going to be put in the cache */
+    public long generation() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches the document unless its key was invalidated after the given generation was taken
+     *
+     * @return whether the document was cached
+     */
+    public boolean put(String dataStoreName, String documentId, Json document, long readGeneration) {
+        final String key = key(dataStoreName, documentId);
+        final String json = document.toString();
+        synchronized (cache) {
+            final Entry current = cache.get(key);
+            final long invalidatedAt = current != null ? current.invalidatedAt : forgottenGeneration;
+            if (readGeneration < invalidatedAt) {
+                stalePuts.increment();
+                return false;
+            }
+            cache.put(key, new Entry(json, invalidatedAt));
+            return true;
+        }
+    }
+
+    /** Discards the document, leaving a marker so reads that were in progress do not cache it again */
+    public void remove(String dataStoreName, String documentId) {
+        synchronized (cache) {
+            cache.put(key(dataStoreName, documentId), new Entry(null, ++generation));
+        }
+    }
+
+    /** Removes every document of the data store from the cache */
+    public void removeAll(String dataStoreName) {
+        final String prefix = key(dataStoreName, "");
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.startsWith(prefix));
+            forgottenGeneration = ++generation;
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            forgottenGeneration = ++generation;
+        }
+    }
+
+    public Json stats() {
+        final int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        return Json.map()
+                .set("size", size)
+                .set("maxSize", maxSize)
+                .set("hits", hits.sum())
+                .set("misses", misses.sum())
+                .set("evictions", evictions.sum())
+                .set("stalePuts", stalePuts.sum());
+    }
+
+    /** Called with the lock held when an entry leaves the map, so its invalidation still applies to puts */
+    private void forget(Entry entry) {
+        if (entry != null) {
+            forgottenGeneration = Math.max(forgottenGeneration, entry.invalidatedAt);
+        }
+    }
+
+    private static String key(String dataStoreName, String documentId) {
+        return dataStoreName + '\u0000' + documentId;
+    }
+
+    /** A cached document, or a marker of an invalidation when the document is null */
+    private static class Entry {
+        private final String document;
+        private final long invalidatedAt;
+        private final long cachedAt = System.nanoTime();
+
+        Entry(String document, long invalidatedAt) {
+            this.document = document;
+            this.invalidatedAt = invalidatedAt;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded index from the id used by the service in development to the internal id of the document in the
+ * proxy data store, so saves and removes of known documents don't need to look them up first.
+ * <p>
+ * The least recently used entries are discarded once the maximum size is reached.
+ */
+public class DocumentIdIndex {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final int maxSize;
+    private final Map<String, String> index;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DocumentIdIndex(int maxSize) {
+        this.maxSize = maxSize;
+        this.index = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > DocumentIdIndex.this.maxSize;
+            }
+        };
+    }
+
+    /** Internal id of the document, or null when it is not indexed */
+    public String get(String dataStoreName, String documentId) {
+        final String internalId;
+        synchronized (index) {
+            internalId = index.get(key(dataStoreName, documentId));
+        }
+        if (internalId != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return internalId;
+    }
+
+    public void put(String dataStoreName, String documentId, String internalId) {
+        synchronized (index) {
+            index.put(key(dataStoreName, documentId), internalId);
+        }
+    }
+
+    public void remove(String dataStoreName, String documentId) {
+        synchronized (index) {
+            index.remove(key(dataStoreName, documentId));
+        }
+    }
+
+    /** Removes every document of the data store from the index */
+    public void removeAll(String dataStoreName) {
+        final String prefix = key(dataStoreName, "");
+        synchronized (index) {
+            index.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public void clear() {
+        synchronized (index) {
+            index.clear();
+        }
+    }
+
+    public Json stats() {
+        final int size;
+        synchronized (index) {
+            size = index.size();
+        }
+        return Json.map()
+                .set("size", size)
+                .set("maxSize", maxSize)
+                .set("hits", hits.sum())
+                .set("misses", misses.sum());
+    }
+
+    private static String key(String dataStoreName, String documentId) {
+        return dataStoreName + '\u0000' + documentId;
+    }
+}
@@ -0,0 +1,80 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.services.datastores.DataStoreResponse;
+import io.slingr.services.utils.Json;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Streams the documents of a data store query as NDJSON (one json document per line).
+ * <p>
+ * Pages are fetched only when the previous one was fully read, so at most one page is kept in memory
+ * regardless of the number of documents.
+ */
+class DocumentsInputStream extends InputStream {
+    private final Function<String, DataStoreResponse> pageFetcher;
+
+    private byte[] buffer = new byte[0];
+    private int position = 0;
+    private String offset = null;
+    private boolean lastPage = false;
+
+    /**
+     * @param pageFetcher returns the page of documents that starts at the given offset (null for the first
+     *                    one), with the documents already converted
+     */
+    DocumentsInputStream(Function<String, DataStoreResponse> pageFetcher) {
+        this.pageFetcher = pageFetcher;
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, buffer.length - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    /** Fetches the next page if the current one was consumed; false when there is nothing else to read */
+    private boolean fill() {
+        while (position >= buffer.length) {
+            if (lastPage) {
+                return false;
+            }
+            final DataStoreResponse page = pageFetcher.apply(offset);
+            final StringBuilder lines = new StringBuilder();
+            for (Json document : page.items()) {
+                lines.append(document.toString()).append('\n');
+            }
+            buffer = lines.toString().getBytes(StandardCharsets.UTF_8);
+            position = 0;
+
+            final String next = page.offset();
+            lastPage = page.items().isEmpty() || StringUtils.isBlank(next) || next.equals(offset);
+            offset = next;
+        }
+        return true;
+    }
+}
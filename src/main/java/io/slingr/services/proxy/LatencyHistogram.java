@@ -0,0 +1,62 @@
+package io.slingr.services.proxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power-of-two buckets from 1 microsecond to about 134 seconds.
+ * <p>
+ * Recording only increments counters, so it does not allocate and it can be used on every request.
+ */
+public class LatencyHistogram {
+    /** Bucket <code>i</code> counts latencies up to <code>2^i</code> microseconds; the last one counts the rest */
+    static final int BUCKETS = 28;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+    private final LongAdder sumMicros = new LongAdder();
+
+    public void record(long elapsedNanos) {
+        final long micros = Math.max(0, elapsedNanos / 1000);
+        final int index = micros <= 1 ? 0 : Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros - 1));
+        buckets.incrementAndGet(index);
+        sumMicros.add(micros);
+    }
+
+    /** Upper bound of the bucket in microseconds, or -1 for the overflow bucket */
+    static long upperBoundMicros(int index) {
+        return index < BUCKETS ? 1L << index : -1;
+    }
+
+    long bucketCount(int index) {
+        return buckets.get(index);
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    long sumMicros() {
+        return sumMicros.sum();
+    }
+
+    /** Upper bound in microseconds of the bucket that contains the given percentile (0 - 100) */
+    long percentileMicros(double percentile) {
+        final long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(count * percentile / 100);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            accumulated += buckets.get(i);
+            if (accumulated >= target) {
+                return upperBoundMicros(i);
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1) * 2;
+    }
+}
@@ -0,0 +1,369 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.Locks;
+import io.slingr.services.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leases over one or more keys of the application locks.
+ * <p>
+ * Callers wait in the proxy, in a FIFO queue, until every key of the request is free instead of polling the
+ * lock endpoint. Keys are taken all at once, in sorted order, on the platform locks too, so leases are also
+ * respected by callers of the single key endpoints. A lease expires when it is not renewed within its TTL and
+ * every lease gets a fencing token that grows with each grant, so the resources protected by the lock can
+ * reject writes from holders whose lease already expired.
+ */
+public class LeaseLocks {
+    private static final Logger logger = LoggerFactory.getLogger(LeaseLocks.class);
+
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    public static final long MAX_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long MAX_WAIT_MILLIS = 60000;
+    public static final int MAX_KEYS = 100;
+    /** Each waiter holds a server thread, so this stays well below the threads of the web server */
+    public static final int MAX_WAITERS = 20;
+    /** Wait before trying again keys locked outside the proxy; it doubles up to the maximum */
+    private static final long MIN_RETRY_MILLIS = 50;
+    private static final long MAX_RETRY_MILLIS = 1000;
+    private static final long REAPER_PERIOD_MILLIS = 1000;
+
+    private final Locks locks;
+    private final Object monitor = new Object();
+    /** Key to the lease holding or taking it */
+    private final Map<String, Lease> holders = new HashMap<>();
+    /** Granted leases by id */
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final ArrayDeque<Lease> waiters = new ArrayDeque<>();
+    /** Starts from the current time, so tokens keep growing after the proxy restarts */
+    private final AtomicLong fencingTokens = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final ScheduledExecutorService reaper;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    public LeaseLocks(Locks locks) {
+        this.locks = locks;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::expireLeases, REAPER_PERIOD_MILLIS, REAPER_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits up to <code>waitMillis</code> until all the keys are free and takes them under a new lease.
+     *
+     * @return the lease, or <code>null</code> when the keys were not free in time
+     */
+    public Lease acquire(Collection<String> keys, long waitMillis, long ttlMillis) {
+        final SortedSet<String> sortedKeys = new TreeSet<>(keys);
+        if (sortedKeys.isEmpty() || sortedKeys.size() > MAX_KEYS || sortedKeys.stream().anyMatch(key -> key == null || key.isBlank())) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Between 1 and %s non empty keys are needed to acquire a lease", MAX_KEYS));
+        }
+        final Lease lease = new Lease(sortedKeys, clamp(ttlMillis, DEFAULT_TTL_MILLIS, MAX_TTL_MILLIS));
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(Math.min(Math.max(0, waitMillis), MAX_WAIT_MILLIS));
+
+        synchronized (monitor) {
+            if (waiters.size() >= MAX_WAITERS) {
+                rejected.increment();
+                throw ServiceException.retryable(ErrorCode.API, "Too many callers waiting for locks, try again later");
+            }
+            waiters.addLast(lease);
+        }
+        boolean waited = false;
+        long retryMillis = MIN_RETRY_MILLIS;
+        try {
+            while (true) {
+                synchronized (monitor) {
+                    while (!isNext(lease)) {
+                        waited = true;
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            timedOut.increment();
+                            return null;
+                        }
+                        monitor.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    }
+                    // keys are reserved before calling the platform, so nobody else in the proxy takes them meanwhile
+                    sortedKeys.forEach(key -> holders.put(key, lease));
+                    waiters.remove(lease);
+                }
+                if (lockAll(sortedKeys)) {
+                    synchronized (monitor) {
+                        lease.grant(fencingTokens.incrementAndGet());
+                        leases.put(lease.id(), lease);
+                    }
+                    acquired.increment();
+                    if (waited) {
+                        contended.increment();
+                    }
+                    waitTime.record(System.nanoTime() - start);
+                    return lease;
+                }
+                // a key is locked outside the proxy, so it has to be tried again later
+                waited = true;
+                synchronized (monitor) {
+                    sortedKeys.forEach(key -> holders.remove(key, lease));
+                    waiters.addFirst(lease);
+                    monitor.notifyAll();
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timedOut.increment();
+                        return null;
+                    }
+                    monitor.wait(Math.max(1, Math.min(retryMillis, TimeUnit.NANOSECONDS.toMillis(remaining))));
+                }
+                retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (!lease.isGranted()) {
+                synchronized (monitor) {
+                    waiters.remove(lease);
+                    monitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Extends the lease for <code>ttlMillis</code> from now.
+     *
+     * @return the lease, or <code>null</code> when it does not exist or it already expired
+     */
+    public Lease renew(String leaseId, long ttlMillis) {
+        synchronized (monitor) {
+            final Lease lease = leases.get(leaseId);
+            if (lease == null || lease.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            lease.extend(clamp(ttlMillis, lease.ttlMillis(), MAX_TTL_MILLIS));
+            renewed.increment();
+            return lease;
+        }
+    }
+
+    /** Releases every key of the lease; returns false when the lease does not exist */
+    public boolean release(String leaseId) {
+        final Lease lease;
+        synchronized (monitor) {
+            lease = leases.remove(leaseId);
+        }
+        if (lease == null) {
+            return false;
+        }
+        releaseKeys(lease);
+        released.increment();
+        return true;
+    }
+
+    /** Releases every lease, for example when the proxy stops */
+    public void stop() {
+        reaper.shutdownNow();
+        final List<Lease> active;
+        synchronized (monitor) {
+            active = new ArrayList<>(leases.values());
+            leases.clear();
+        }
+        active.forEach(this::releaseKeys);
+    }
+
+    public Json stats() {
+        final int active;
+        final int heldKeys;
+        final int waiting;
+        synchronized (monitor) {
+            active = leases.size();
+            heldKeys = holders.size();
+            waiting = waiters.size();
+        }
+        final long count = waitTime.count();
+        return Json.map()
+                .set("active", active)
+                .set("heldKeys", heldKeys)
+                .set("waiting", waiting)
+                .set("acquired", acquired.sum())
+                .set("contended", contended.sum())
+                .set("timedOut", timedOut.sum())
+                .set("rejected", rejected.sum())
+                .set("renewed", renewed.sum())
+                .set("released", released.sum())
+                .set("expired", expired.sum())
+                .set("waitMillis", Json.map()
+                        .set("mean", count > 0 ? waitTime.sumMicros() / count / 1000.0 : 0)
+                        .set("p50", waitTime.percentileMicros(50) / 1000.0)
+                        .set("p99", waitTime.percentileMicros(99) / 1000.0));
+    }
+
+    /** A lease can take its keys when they are free and no caller queued before it wants any of them */
+    private boolean isNext(Lease lease) {
+        for (String key : lease.keys()) {
+            if (holders.containsKey(key)) {
+                return false;
+            }
+        }
+        for (Lease waiter : waiters) {
+            if (waiter == lease) {
+                return true;
+            }
+            if (!Collections.disjoint(waiter.keys(), lease.keys())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Takes the platform locks in order; when one of them is not free the ones already taken are released */
+    private boolean lockAll(SortedSet<String> keys) {
+        final List<String> locked = new ArrayList<>(keys.size());
+        try {
+            for (String key : keys) {
+                if (!locks.lock(key)) {
+                    break;
+                }
+                locked.add(key);
+            }
+        } catch (RuntimeException ex) {
+            logger.warn(String.format("Exception when try to lock keys %s: %s", keys, ex.getMessage()), ex);
+        }
+        if (locked.size() == keys.size()) {
+            return true;
+        }
+        unlockAll(locked);
+        return false;
+    }
+
+    private void unlockAll(Collection<String> keys) {
+        for (String key : keys) {
+            try {
+                locks.unlock(key);
+            } catch (RuntimeException ex) {
+                logger.warn(String.format("Exception when try to unlock key [%s]: %s", key, ex.getMessage()), ex);
+            }
+        }
+    }
+
+    /** Platform locks are released before the keys are handed to the next caller waiting for them */
+    private void releaseKeys(Lease lease) {
+        unlockAll(lease.keys());
+        synchronized (monitor) {
+            lease.keys().forEach(key -> holders.remove(key, lease));
+            monitor.notifyAll();
+        }
+    }
+
+    private void expireLeases() {
+        final List<Lease> expiredLeases = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        synchronized (monitor) {
+            final Iterator<Lease> iterator = leases.values().iterator();
+            while (iterator.hasNext()) {
+                final Lease lease = iterator.next();
+                if (lease.isExpired(now)) {
+                    iterator.remove();
+                    expiredLeases.add(lease);
+                }
+            }
+        }
+        for (Lease lease : expiredLeases) {
+            logger.info(String.format("Lease [%s] over keys %s expired", lease.id(), lease.keys()));
+            releaseKeys(lease);
+            expired.increment();
+        }
+    }
+
+    private static long clamp(long ttlMillis, long defaultMillis, long maxMillis) {
+        return ttlMillis > 0 ? Math.min(ttlMillis, maxMillis) : defaultMillis;
+    }
+
+    /** Keys held together until the lease is released or it expires */
+    public static class Lease {
+        private final String id = UUID.randomUUID().toString();
+        private final SortedSet<String> keys;
+        private volatile long ttlMillis;
+        private volatile long expiresAt;
+        private volatile long fencingToken = -1;
+
+        Lease(SortedSet<String> keys, long ttlMillis) {
+            this.keys = Collections.unmodifiableSortedSet(keys);
+            this.ttlMillis = ttlMillis;
+        }
+
+        void grant(long fencingToken) {
+            this.fencingToken = fencingToken;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        void extend(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isGranted() {
+            return fencingToken >= 0;
+        }
+
+        boolean isExpired(long now) {
+            return isGranted() && now >= expiresAt;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public SortedSet<String> keys() {
+            return keys;
+        }
+
+        public long ttlMillis() {
+            return ttlMillis;
+        }
+
+        public long expiresAt() {
+            return expiresAt;
+        }
+
+        public long fencingToken() {
+            return fencingToken;
+        }
+
+        public Json toJson() {
+            return Json.map()
+                    .set("leaseId", id)
+                    .set("keys", new ArrayList<>(keys))
+                    .set("fencingToken", fencingToken)
+                    .set("ttl", ttlMillis)
+                    .set("expiresAt", expiresAt);
+        }
+    }
+}
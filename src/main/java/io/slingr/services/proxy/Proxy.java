@@ -11,10 +11,7 @@ import io.slingr.services.services.exchange.ApiUri;
 import io.slingr.services.services.exchange.Parameter;
 import io.slingr.services.services.logs.AppLogLevel;
 import io.slingr.services.services.rest.DownloadedFile;
-import io.slingr.services.services.rest.RestClient;
-import io.slingr.services.services.rest.RestClientBuilder;
 import io.slingr.services.services.rest.RestMethod;
-import io.slingr.services.utils.FilesUtils;
 import io.slingr.services.utils.Json;
 import io.slingr.services.utils.Strings;
 import io.slingr.services.ws.exchange.FunctionRequest;
@@ -24,18 +21,35 @@ import io.slingr.services.ws.exchange.WebServiceResponse;
 import io.slingr.services.framework.annotations.ApplicationLogger;
 import io.slingr.services.framework.annotations.SlingrService;
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.entity.ContentType;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLContext;
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * Service used as a proxy to services on the developer environment
@@ -49,26 +63,59 @@ public class Proxy extends Service {
     private static final String DATA_STORE_NAME = "__ds_name__";
     private static final String DATA_STORE_NEW_ID = "__ds_id__";
     private static final String DATA_STORE_ID = "_id";
+    /** Headers of the webhook that are not sent to the service */
+    private static final Set<String> EXCLUDED_REQUEST_HEADERS = ServiceClient.caseInsensitiveSet(Parameter.CONTENT_LENGTH, Parameter.HOST);
+    private static final String DATA_STORE_SIZE = "_size";
+    private static final String DATA_STORE_OFFSET = "_offset";
+    private static final int DATA_STORE_MAX_PAGE_SIZE = 1000;
+    private static final int DATA_STORE_STREAM_PAGE_SIZE = 500;
     private static final String CONFIGURATION_HELP_URL_VALUE = "/services_proxy.html#configuration";
+    private static final int FILE_BUFFER_SIZE = 8192;
+    private static final int FILE_RETRY_BUFFER_SIZE = 1024 * 1024;
+    private static final String CONTENT_DIGEST = "Content-Digest";
+    private static final int BATCH_CHUNK_SIZE = 100;
+    private static final int BATCH_PARALLELISM = 8;
+    private static final String EVENT_BATCH_ORDER_KEY = "events";
 
     // Service services uris
     private static final String VAR_KEY = "key";
     private static final String VAR_DATA_STORE = "dataStore";
     private static final String VAR_DOCUMENT_ID = "documentId";
     private static final String VAR_FILE_ID = "fileId";
+    private static final String VAR_LEASE_ID = "leaseId";
+    private static final String VAR_CORRELATION_ID = "correlationId";
+    private static final String VAR_UPLOAD_ID = "uploadId";
+    private static final String VAR_CHUNK = "chunk";
     private static final String EB_URL_PREFIX = "/api";
     private static final String URL_CONFIGURATION =     EB_URL_PREFIX + ApiUri.EB_URL_CONFIGURATION;
     private static final String URL_ASYNC_EVENT =       EB_URL_PREFIX + ApiUri.EB_URL_ASYNC_EVENT;
+    private static final String URL_ASYNC_EVENT_BATCH = URL_ASYNC_EVENT + "/batch";
     private static final String URL_SYNC_EVENT =        EB_URL_PREFIX + ApiUri.EB_URL_SYNC_EVENT;
+    private static final String URL_SYNC_EVENT_RESULT = URL_SYNC_EVENT + "/{"+VAR_CORRELATION_ID+"}";
     private static final String URL_APP_LOG =           EB_URL_PREFIX + ApiUri.EB_URL_APP_LOG;
     private static final String URL_FILE_UPLOAD =       EB_URL_PREFIX + ApiUri.EB_URL_FILE_UPLOAD;
     private static final String URL_LOCK =              EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_LOCK+"/{"+VAR_KEY+"}";
+    private static final String URL_LEASES =            EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+"/leases";
+    private static final String URL_LEASE =             URL_LEASES + "/{"+VAR_LEASE_ID+"}";
     private static final String URL_FILE_DOWNLOAD =     EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_FILE+"/{"+VAR_FILE_ID+"}";
+    private static final String URL_UPLOADS =           EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+"/uploads";
+    private static final String URL_UPLOAD =            URL_UPLOADS + "/{"+VAR_UPLOAD_ID+"}";
+    private static final String URL_UPLOAD_CHUNK =      URL_UPLOAD + "/chunks/{"+VAR_CHUNK+"}";
+    private static final String URL_UPLOAD_COMMIT =     URL_UPLOAD + "/commit";
     private static final String URL_FILE_METADATA =     EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_FILE+"/{"+VAR_FILE_ID+"}/"+ApiUri.EB_PART_METADATA;
     private static final String URL_DATA_STORE =        EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_DATA_STORE+"/{"+VAR_DATA_STORE+"}";
     private static final String URL_DATA_STORE_BY_ID =  EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_DATA_STORE+"/{"+VAR_DATA_STORE+"}/{"+VAR_DOCUMENT_ID+"}";
+    private static final String URL_DATA_STORE_BULK =   EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_DATA_STORE+"/{"+VAR_DATA_STORE+"}/bulk";
+    private static final String URL_DATA_STORE_BULK_REMOVE = URL_DATA_STORE_BULK + "/remove";
+    private static final String URL_DATA_STORE_STREAM = EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_DATA_STORE+"/{"+VAR_DATA_STORE+"}/stream";
     private static final String URL_DATA_STORE_COUNT =  EB_URL_PREFIX + ApiUri.EB_URL_SERVICES_PREFIX+ApiUri.EB_PART_DATA_STORE+"/{"+VAR_DATA_STORE+"}/"+ApiUri.EB_PART_COUNT;
     private static final String URL_CLEAR_CACHE =       EB_URL_PREFIX + ApiUri.EB_URL_CLEAR_CACHE;
+    private static final String URL_PROXY_STATS =       EB_URL_PREFIX + "/proxy/stats";
+    private static final String URL_PROXY_METRICS =     EB_URL_PREFIX + "/proxy/metrics";
+
+    private static final int DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS = 10;
+    private static final String WEB_SERVICES_PORT_PROPERTY = "_webservices_port";
+    private static final int DEFAULT_WEB_SERVICES_PORT = 10000;
 
     @ApplicationLogger
     private AppLogs appLogger;
@@ -79,9 +126,140 @@ public class Proxy extends Service {
     @ServiceProperty
     private String serviceToken;
 
+    @ServiceProperty
+    private String additionalServiceUris;
+
+    @ServiceProperty
+    private String loadBalancing;
+
+    @ServiceProperty
+    private String stickyHeader;
+
+    @ServiceProperty
+    private String healthCheckPath;
+
+    @ServiceProperty
+    private Integer healthCheckInterval;
+
+    @ServiceProperty
+    private Integer maxConnectionsPerRoute;
+
+    @ServiceProperty
+    private Integer idleConnectionTimeout;
+
+    @ServiceProperty
+    private Boolean webhookStreaming;
+
+    @ServiceProperty
+    private Integer configurationCacheTtl;
+
+    @ServiceProperty
+    private Boolean coalesceRequests;
+
+    @ServiceProperty
+    private Boolean compression;
+
+    @ServiceProperty
+    private Integer compressionThreshold;
+
+    @ServiceProperty
+    private Integer maxDecompressedSize;
+
+    @ServiceProperty
+    private Integer tunnelPort;
+
+    @ServiceProperty
+    private String tunnelKeyStore;
+
+    @ServiceProperty
+    private String tunnelKeyStorePassword;
+
+    @ServiceProperty
+    private String accessLogSampling;
+
+    @ServiceProperty
+    private Integer accessLogMaxBody;
+
+    @ServiceProperty
+    private Integer functionsConcurrency;
+
+    @ServiceProperty
+    private Integer webhooksConcurrency;
+
+    @ServiceProperty
+    private Integer callbacksConcurrency;
+
+    @ServiceProperty
+    private Integer responseCacheSize;
+
+    @ServiceProperty
+    private Integer documentCacheSize;
+
+    @ServiceProperty
+    private Integer documentCacheTtl;
+
     @ServiceDataStore(name = "ds")
     private DataStore dataStore;
 
+    private ServiceClient serviceClient;
+    private ConfigurationCache configurationCache;
+    private ExecutorService batchExecutor;
+    private BatchProcessor batchProcessor;
+    private AccessLog accessLog;
+
+    private final DocumentIdIndex documentIdIndex = new DocumentIdIndex(DocumentIdIndex.DEFAULT_MAX_SIZE);
+    private DocumentCache documentCache;
+    private ResponseCache responseCache;
+    private LeaseLocks leaseLocks;
+    private AsyncSyncEvents asyncSyncEvents;
+    private UploadSessions uploadSessions;
+    private ServiceTunnel serviceTunnel;
+
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private final ProxyMetrics.Endpoint functionMetrics = metrics.endpoint("function_interceptor");
+    private final ProxyMetrics.Endpoint configurationMetrics = metrics.endpoint("configuration_interceptor");
+    private final ProxyMetrics.Endpoint webhookMetrics = metrics.endpoint("webhook_interceptor");
+    private final ProxyMetrics.Endpoint configurationRequestMetrics = metrics.endpoint("configuration");
+    private final ProxyMetrics.Endpoint asyncEventMetrics = metrics.endpoint("async_event");
+    private final ProxyMetrics.Endpoint asyncEventBatchMetrics = metrics.endpoint("async_event_batch");
+    private final ProxyMetrics.Endpoint syncEventMetrics = metrics.endpoint("sync_event");
+    private final ProxyMetrics.Endpoint syncEventResultMetrics = metrics.endpoint("sync_event_result");
+    private final ProxyMetrics.Endpoint appLogMetrics = metrics.endpoint("app_log");
+    private final ProxyMetrics.Endpoint fileMetadataMetrics = metrics.endpoint("file_metadata");
+    private final ProxyMetrics.Endpoint downloadFileMetrics = metrics.endpoint("download_file");
+    private final ProxyMetrics.Endpoint createUploadMetrics = metrics.endpoint("create_upload");
+    private final ProxyMetrics.Endpoint uploadChunkMetrics = metrics.endpoint("upload_chunk");
+    private final ProxyMetrics.Endpoint uploadStatusMetrics = metrics.endpoint("upload_status");
+    private final ProxyMetrics.Endpoint commitUploadMetrics = metrics.endpoint("commit_upload");
+    private final ProxyMetrics.Endpoint abortUploadMetrics = metrics.endpoint("abort_upload");
+    private final ProxyMetrics.Endpoint uploadFileMetrics = metrics.endpoint("upload_file");
+    private final ProxyMetrics.Endpoint dataStoreSaveDocumentMetrics = metrics.endpoint("data_store_save_document");
+    private final ProxyMetrics.Endpoint dataStoreUpdateDocumentMetrics = metrics.endpoint("data_store_update_document");
+    private final ProxyMetrics.Endpoint dataStoreSaveDocumentsMetrics = metrics.endpoint("data_store_save_documents");
+    private final ProxyMetrics.Endpoint dataStoreRemoveDocumentsByIdMetrics = metrics.endpoint("data_store_remove_documents_by_id");
+    private final ProxyMetrics.Endpoint dataStoreCountDocumentsMetrics = metrics.endpoint("data_store_count_documents");
+    private final ProxyMetrics.Endpoint dataStoreFindDocumentByIdMetrics = metrics.endpoint("data_store_find_document_by_id");
+    private final ProxyMetrics.Endpoint dataStoreFindDocumentsMetrics = metrics.endpoint("data_store_find_documents");
+    private final ProxyMetrics.Endpoint dataStoreStreamDocumentsMetrics = metrics.endpoint("data_store_stream_documents");
+    private final ProxyMetrics.Endpoint dataStoreRemoveDocumentByIdMetrics = metrics.endpoint("data_store_remove_document_by_id");
+    private final ProxyMetrics.Endpoint dataStoreRemoveDocumentsMetrics = metrics.endpoint("data_store_remove_documents");
+    private final ProxyMetrics.Endpoint lockKeyMetrics = metrics.endpoint("lock_key");
+    private final ProxyMetrics.Endpoint unlockKeyMetrics = metrics.endpoint("unlock_key");
+    private final ProxyMetrics.Endpoint acquireLeaseMetrics = metrics.endpoint("acquire_lease");
+    private final ProxyMetrics.Endpoint renewLeaseMetrics = metrics.endpoint("renew_lease");
+    private final ProxyMetrics.Endpoint releaseLeaseMetrics = metrics.endpoint("release_lease");
+    private final ProxyMetrics.Endpoint clearCacheMetrics = metrics.endpoint("clear_cache");
+
+    private Bulkhead functionsBulkhead = bulkhead("function calls", null);
+    private Bulkhead webhooksBulkhead = bulkhead("webhooks", null);
+    private Bulkhead callbacksBulkhead = bulkhead("service requests", null);
+    /** Callers of leases may wait long for their keys, so they never queue for a thread: extra ones are rejected */
+    private final Bulkhead leasesBulkhead = new Bulkhead("lease requests", LeaseLocks.MAX_WAITERS, 0, 0);
+
+    private final LongAdder bytesStreamed = new LongAdder();
+    /** Whole files streamed without a temporary file; ranges and chunked uploads are not counted */
+    private final LongAdder tempFilesAvoided = new LongAdder();
+
     @Override
     public void webServicesConfigured() {
         // enable interceptors
@@ -93,10 +271,120 @@ public class Proxy extends Service {
     @Override
     public void serviceStarted() {
         logger.info(String.format("Configured Proxy Service - Service URI [%s], Service Token [%s]", serviceUri, Strings.maskToken(serviceToken)));
+        final AtomicInteger batchThreads = new AtomicInteger();
+        batchExecutor = Executors.newFixedThreadPool(BATCH_PARALLELISM, runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-batch-" + batchThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        batchProcessor = new BatchProcessor(batchExecutor, BATCH_CHUNK_SIZE);
+        accessLog = new AccessLog(positiveOrDefault(accessLogMaxBody, AccessLog.DEFAULT_MAX_BODY_LENGTH), accessLogSampling);
+        functionsBulkhead = bulkhead("function calls", functionsConcurrency);
+        webhooksBulkhead = bulkhead("webhooks", webhooksConcurrency);
+        callbacksBulkhead = bulkhead("service requests", callbacksConcurrency);
+        if(documentCacheSize != null && documentCacheSize > 0){
+            documentCache = new DocumentCache(documentCacheSize, positiveOrDefault(documentCacheTtl, DocumentCache.DEFAULT_TTL_SECONDS));
+        }
+        if(responseCacheSize != null && responseCacheSize > 0){
+            if(Boolean.TRUE.equals(webhookStreaming)){
+                logger.warn("Response cache is not used because webhooks are streamed");
+            } else {
+                responseCache = new ResponseCache(responseCacheSize * 1024L * 1024L);
+            }
+        }
+        try {
+            uploadSessions = new UploadSessions();
+        } catch (IOException ex) {
+            logger.warn(String.format("Chunked uploads are not available: %s", ex.getMessage()), ex);
+        }
+        leaseLocks = new LeaseLocks(locks());
+        asyncSyncEvents = new AsyncSyncEvents(AsyncSyncEvents.DEFAULT_CONCURRENCY, AsyncSyncEvents.DEFAULT_MAX_PENDING, AsyncSyncEvents.DEFAULT_RESULT_TTL_MILLIS);
+        if(StringUtils.isNotBlank(serviceUri)) {
+            final ServiceTargets targets = new ServiceTargets(serviceUri, additionalServiceUris, ServiceTargets.Strategy.fromKey(loadBalancing), stickyHeader);
+            if(targets.isBalanced()){
+                logger.info(String.format("Balancing requests between [%s] service targets with strategy [%s]", targets.all().size(), targets.strategy()));
+            }
+            serviceClient = new ServiceClient(targets, serviceToken,
+                    positiveOrDefault(maxConnectionsPerRoute, ServiceClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+                    positiveOrDefault(idleConnectionTimeout, ServiceClient.DEFAULT_IDLE_TIMEOUT_SECONDS),
+                    Boolean.TRUE.equals(coalesceRequests),
+                    new Compression(!Boolean.FALSE.equals(compression), positiveOrDefault(compressionThreshold, Compression.DEFAULT_THRESHOLD_BYTES),
+                            positiveOrDefault(maxDecompressedSize, Compression.DEFAULT_MAX_DECOMPRESSED_BYTES)));
+            configurationCache = new ConfigurationCache(serviceClient, ApiUri.URL_CONFIGURATION,
+                    positiveOrDefault(configurationCacheTtl, ConfigurationCache.DEFAULT_TTL_SECONDS));
+            serviceClient.startHealthChecks(StringUtils.isNotBlank(healthCheckPath) ? healthCheckPath.trim() : ApiUri.URL_CONFIGURATION,
+                    positiveOrDefault(healthCheckInterval, DEFAULT_HEALTH_CHECK_INTERVAL_SECONDS));
+        }
+        if(tunnelPort != null && tunnelPort > 0){
+            try {
+                final SSLContext tunnelTls = StringUtils.isNotBlank(tunnelKeyStore) ? ServiceTunnel.tlsContext(tunnelKeyStore.trim(), tunnelKeyStorePassword) : null;
+                serviceTunnel = new ServiceTunnel(tunnelPort, serviceToken, localWebServicesUri(), tunnelTls);
+                serviceTunnel.start();
+                if(serviceClient != null){
+                    serviceClient.useTunnel(serviceTunnel);
+                }
+            } catch (IOException | GeneralSecurityException ex) {
+                logger.warn(String.format("Tunnel could not be opened on port [%s], requests are sent over HTTP: %s", tunnelPort, ex.getMessage()));
+                if(serviceTunnel != null){
+                    serviceTunnel.close();
+                    serviceTunnel = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void serviceStopped(String cause) {
+        logger.info(String.format("Proxy Service stopped [%s]", cause));
+        if(serviceTunnel != null){
+            serviceTunnel.close();
+            serviceTunnel = null;
+        }
+        if(configurationCache != null){
+            configurationCache.stop();
+            configurationCache = null;
+        }
+        if(serviceClient != null){
+            serviceClient.close();
+            serviceClient = null;
+        }
+        if(batchExecutor != null){
+            batchExecutor.shutdown();
+            batchExecutor = null;
+            batchProcessor = null;
+        }
+        if(accessLog != null){
+            accessLog.stop();
+            accessLog = null;
+        }
+        if(leaseLocks != null){
+            leaseLocks.stop();
+            leaseLocks = null;
+        }
+        if(asyncSyncEvents != null){
+            asyncSyncEvents.stop();
+            asyncSyncEvents = null;
+        }
+        if(uploadSessions != null){
+            uploadSessions.stop();
+            uploadSessions = null;
+        }
     }
 
     @Override
     public Object functionInterceptor(FunctionRequest request) throws ServiceException {
+        final long start = functionMetrics.begin();
+        boolean failed = true;
+        try {
+            final Object response = forwardFunction(request);
+            failed = false;
+            return response;
+        } finally {
+            functionMetrics.end(start, failed);
+        }
+    }
+
+    private Object forwardFunction(FunctionRequest request) throws ServiceException {
         final String functionName = request.getFunctionName();
         logger.info(String.format("Function request [%s] - id [%s]", functionName, request.getFunctionId()));
 
@@ -109,7 +397,7 @@ public class Proxy extends Service {
             }
             jsonRequest.set(Parameter.PARAMS, body);
 
-            final Json response = postJsonFromService(jsonRequest);
+            final Json response = functionsBulkhead.execute(() -> postJsonFromService(jsonRequest));
 
             logger.info(String.format("Function response [%s] received - id [%s]", functionName, request.getFunctionId()));
             return response.contains(Parameter.DATA) ? response.json(Parameter.DATA) : Json.map();
@@ -124,6 +412,8 @@ public class Proxy extends Service {
 
     @Override
     public Json configurationInterceptor(Json configuration) throws ServiceException {
+        final long start = configurationMetrics.begin();
+        boolean failed = true;
         try {
             // removes proxy configuration
             configuration.set(Parameter.METADATA_HELP_URL, CONFIGURATION_HELP_URL_VALUE)
@@ -149,28 +439,34 @@ public class Proxy extends Service {
                         .setIfNotEmpty(Parameter.METADATA_JS,serviceConfiguration.string(Parameter.METADATA_JS))
                         .setIfNotEmpty(Parameter.METADATA_LISTENERS, serviceConfiguration.string(Parameter.METADATA_LISTENERS));
             }
+            failed = false;
         } catch (ServiceException ex){
             appLogger.error(String.format("Exception when try to request configuration from Service: %s", ex.getMessage()));
             logger.warn(String.format("Exception when try to request configuration from Service: %s", ex));
         } catch (Exception ex){
             appLogger.error(String.format("Exception when try to request configuration from Service: %s", ex.getMessage()));
             logger.warn(String.format("Exception when try to request configuration from Service: %s", ex.getMessage()), ex);
+        } finally {
+            configurationMetrics.end(start, failed);
         }
         return configuration;
     }
 
     private Json getJsonFromService() {
-        return RestClient.builder(this.serviceUri)
-                .header(Parameter.TOKEN, this.serviceToken)
-                .path(ApiUri.URL_CONFIGURATION)
-                .get();
+        final ConfigurationCache cache = configurationCache;
+        return cache != null ? cache.get() : serviceClient().getJson(ApiUri.URL_CONFIGURATION);
     }
 
     private Json postJsonFromService(final Json content) {
-        return RestClient.builder(this.serviceUri)
-                .header(Parameter.TOKEN, this.serviceToken)
-                .path(ApiUri.URL_FUNCTION)
-                .post(content);
+        return serviceClient().postJson(ApiUri.URL_FUNCTION, content);
+    }
+
+    private ServiceClient serviceClient() {
+        final ServiceClient client = serviceClient;
+        if(client == null){
+            throw ServiceException.permanent(ErrorCode.CLIENT, "Service URI is not configured (check proxy configuration page)");
+        }
+        return client;
     }
 
     @Override
@@ -179,105 +475,176 @@ public class Proxy extends Service {
             return null;
         }
 
-        String path = request.getPath();
-        if(StringUtils.isBlank(path)){
-            path = "/";
+        final long start = webhookMetrics.begin();
+        boolean failed = true;
+        try {
+            final Object response = forwardWebhook(request);
+            failed = false;
+            return response;
+        } finally {
+            webhookMetrics.end(start, failed);
         }
-        path = path.trim();
+    }
+
+    private Object forwardWebhook(WebServiceRequest request) throws ServiceException {
+        final String path = StringUtils.isBlank(request.getPath()) ? "/" : request.getPath().trim();
 
-        final String queryString = request.getParameters().toString();
+        final boolean streaming = Boolean.TRUE.equals(webhookStreaming);
         final Object body = request.getBody();
-        final String bodyLog = request.getMethod() == RestMethod.POST || request.getMethod() == RestMethod.PUT || request.getMethod() == RestMethod.PATCH ?
-                String.format(" - body [%s]", body != null ? body : "-") : "";
-        logger.info(String.format("Generic web service request [%s %s%s]%s", request.getMethod().toString(), path, StringUtils.isNotBlank(queryString) ? String.format("?%s", queryString) : "", bodyLog));
+        final RestMethod method = request.getMethod();
+        final boolean withBody = method == RestMethod.POST || method == RestMethod.PUT || method == RestMethod.PATCH;
+        if(accessLog != null){
+            accessLog.request(method, path, request.getParameters(), withBody ? (body != null ? body : "-") : null);
+        }
 
-        final RestClientBuilder client = RestClient
-                .builder(this.serviceUri)
-                .path(path);
+        final Json headers = forwardedHeaders(request.getHeaders());
 
-        request.getHeaders().forEachMap((key, value) -> {
-            if(!Parameter.CONTENT_LENGTH.equalsIgnoreCase(key) && !Parameter.HOST.equalsIgnoreCase(key)) {
-                client.header(key, value);
+        if(streaming){
+            return webhooksBulkhead.execute(() -> streamToService(method, path, headers, request.getParameters(), withBody ? body : null));
+        }
+        final ServiceClient.ExchangeResponse serviceResponse;
+        if(responseCache != null && (method == null || method == RestMethod.GET)){
+            serviceResponse = responseCache.get(path, request.getParameters(), headers,
+                    cacheHeaders -> webhooksBulkhead.execute(() -> serviceClient().exchange(method, path, cacheHeaders, request.getParameters(), null)));
+        } else {
+            serviceResponse = webhooksBulkhead.execute(() -> serviceClient().exchange(method, path, headers, request.getParameters(), withBody ? body : null));
+            if(responseCache != null && method != RestMethod.HEAD && method != RestMethod.OPTIONS && serviceResponse != null && serviceResponse.status() < 400){
+                responseCache.invalidate(path);
             }
-        });
-        request.getParameters().forEachMapString(client::parameter);
+        }
 
-        final Json serviceResponse = switch (request.getMethod()) {
-            default -> client.get(true);
-            case POST -> client.post(body, true);
-            case PUT -> client.put(body, true);
-            case DELETE -> client.delete(true);
-            case OPTIONS -> client.options(true);
-            case HEAD -> client.head(true);
-            case PATCH -> client.patch(body, true);
-        };
+        return toWebServiceResponse(method, serviceResponse);
+    }
 
-        final WebServiceResponse response;
+    /** Headers of the webhook that are sent to the service */
+    static Json forwardedHeaders(Json requestHeaders){
+        final Json headers = Json.map();
+        requestHeaders.forEachMap((key, value) -> {
+            if(!EXCLUDED_REQUEST_HEADERS.contains(key)) {
+                headers.set(key, value);
+            }
+        });
+        return headers;
+    }
+
+    /** Builds the answer of the webhook from the response of the service; its body and headers are used as they are */
+    static WebServiceResponse toWebServiceResponse(RestMethod method, ServiceClient.ExchangeResponse serviceResponse){
         if(serviceResponse == null){
-            response = new WebServiceResponse(String.format("Invalid response to [%s] method: no response", request.getMethod()));
-            response.setHttpCode(500);
-        } else if(!serviceResponse.contains("body")){
-            response = new WebServiceResponse(String.format("Invalid response to [%s] method: %s", request.getMethod(), serviceResponse));
+            final WebServiceResponse response = new WebServiceResponse(String.format("Invalid response to [%s] method: no response", method));
             response.setHttpCode(500);
-        } else {
-            if(serviceResponse.object("body") instanceof LinkedHashMap
-                    && serviceResponse.contains("headers")
-                    && serviceResponse.json("headers")!= null
-                    && serviceResponse.json("headers").isNotEmpty()
-                    && serviceResponse.json("headers").string("Content-Type") != null
-                    && serviceResponse.json("headers").string("Content-Type").startsWith(ContentType.APPLICATION_JSON.getMimeType())
-            ){
-                logger.info(String.format("Body response to [%s] method fixed to Json", request.getMethod()));
-                Json jsonBody = Json.fromMap((LinkedHashMap<String, ?>) serviceResponse.object("body"));
-                response = new WebServiceResponse(jsonBody);
-            }else{
-                response = new WebServiceResponse(serviceResponse.object("body"));
-            }
-
-            if(serviceResponse.contains("status")){
-                try {
-                    response.setHttpCode(serviceResponse.integer("status"));
-                } catch (Exception ex){
-                    logger.warn(String.format("Exception on received status code [%s] - code 200 is returned: %s", serviceResponse.object("status"), ex.getMessage()), ex);
-                }
-            }
-            if(serviceResponse.contains("headers")){
-                try {
-                    final Json hd = serviceResponse.json("headers");
-                    if(hd != null && hd.isNotEmpty()){
-                        for (String header : hd.keys()) {
-                            if(!Parameter.CONTENT_LENGTH.equals(header) && !Parameter.HOST.equalsIgnoreCase(header)) {
-                                response.setHeader(header, hd.string(header));
-                            }
-                        }
-                    }
-                } catch (Exception ex){
-                    logger.warn(String.format("Exception on received headers [%s] - empty headers will be returned: %s", serviceResponse.object("headers"), ex.getMessage()), ex);
-                }
-            }
+            return response;
         }
+        final WebServiceResponse response = new WebServiceResponse(serviceResponse.body());
+        response.setHttpCode(serviceResponse.status());
+        serviceResponse.headers().forEach(response::setHeader);
+        return response;
+    }
+
+    /** Pipes the request and the response bodies between the caller and the service without parsing them */
+    private WebServiceResponse streamToService(RestMethod method, String path, Json headers, Json parameters, Object body){
+        final Object content = body instanceof Json ? body.toString() : body;
+        final ServiceClient.StreamedResponse serviceResponse = serviceClient().stream(method, path, headers, parameters, content);
 
+        final WebServiceResponse response = new WebServiceResponse(serviceResponse.body());
+        response.setHttpCode(serviceResponse.status());
+        serviceResponse.headers().forEachMapString(response::setHeader);
         return response;
     }
 
     @ServiceWebService(path = URL_CONFIGURATION, methods = RestMethod.GET)
     public Json serviceConfiguration(WebServiceRequest request){
-        logger.info("Properties request received");
-        checkToken(request.getHeader(Parameter.TOKEN));
-
-        return Json.map()
-                .set(Parameter.CONFIGURATION_PROXY, true)
-                .set(Parameter.CONFIGURATION_WEB_SERVICE_URI, properties().getWebServicesUri())
-        ;
+        return instrumented(configurationRequestMetrics, () -> {
+            logger.info("Properties request received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            return Json.map()
+                    .set(Parameter.CONFIGURATION_PROXY, true)
+                    .set(Parameter.CONFIGURATION_WEB_SERVICE_URI, properties().getWebServicesUri())
+            ;
+        });
     }
 
     @ServiceWebService(path = URL_ASYNC_EVENT, methods = RestMethod.POST)
     public Json serviceAsyncEvent(WebServiceRequest request){
-        logger.info("Event received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(asyncEventMetrics, () -> {
+            logger.info("Event received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final Json event = request.getJsonBody();
+
+            sendEvent(event);
+            logger.info("Event sent to application");
+            return Json.map();
+        });
+    }
+
+    @ServiceWebService(path = URL_ASYNC_EVENT_BATCH, methods = RestMethod.POST)
+    public Json serviceAsyncEventBatch(WebServiceRequest request){
+        return callback(asyncEventBatchMetrics, () -> {
+            logger.info("Event batch received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            // all events share the same key, so they reach the application in the order of the batch
+            final Json summary = batchProcessor.process(batchItemsIterator(request.getBody()), "accepted", item -> EVENT_BATCH_ORDER_KEY, item -> {
+                sendEvent(toBatchItemJson(item));
+                return Json.map();
+            });
 
-        final Json event = request.getJsonBody();
+            logger.info(String.format("Event batch sent to application - accepted [%s], failed [%s]", summary.integer("accepted"), summary.integer("failed")));
+            return summary;
+        });
+    }
+
+    /** Items of a batch: a json array, or one item per line (NDJSON) read as they are consumed */
+    private static Iterator<?> batchItemsIterator(Object body){
+        if(body instanceof Json){
+            final Json json = (Json) body;
+            return json.isList() ? json.toList().iterator() : List.of(json).iterator();
+        }
+        final BufferedReader reader;
+        if(body instanceof InputStream){
+            reader = new BufferedReader(new InputStreamReader((InputStream) body, StandardCharsets.UTF_8));
+        } else if(body instanceof String){
+            reader = new BufferedReader(new StringReader((String) body));
+        } else {
+            return Collections.emptyIterator();
+        }
+        return reader.lines().filter(StringUtils::isNotBlank).iterator();
+    }
+
+    /** Id of a document to remove: the item itself or its <code>_id</code> */
+    private static String batchItemId(Object item){
+        return item instanceof String ? (String) item : toBatchItemJson(item).string(DATA_STORE_ID);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Json toBatchItemJson(Object item){
+        if(item instanceof Json){
+            return (Json) item;
+        }
+        if(item instanceof Map){
+            return Json.fromMap((Map<String, ?>) item);
+        }
+        if(item instanceof String){
+            return Json.parse((String) item);
+        }
+        throw ServiceException.permanent(ErrorCode.API, String.format("Invalid item [%s]", item));
+    }
+
+    /** Wraps the response of the application listener of a sync event */
+    static Json syncEventResponse(Object response){
+        if (response == null) {
+            response = Json.map();
+        }
+
+        Json jsonResponse = Json.fromObject(response, false, true);
+        if (jsonResponse == null) {
+            jsonResponse = Json.map().set(Parameter.SYNC_RESPONSE, response);
+        }
+        return jsonResponse;
+    }
 
+    private void sendEvent(Json event){
         events().send(
                 event.longInteger(Parameter.DATE),
                 event.string(Parameter.EVENT_NAME),
@@ -287,18 +654,49 @@ public class Proxy extends Service {
                 event.string(Parameter.USER_EMAIL),
                 0
         );
-        logger.info("Event sent to application");
-        return Json.map();
     }
 
+    /**
+     * Sends a sync event to the application. With <code>async</code> in the body the answer is a correlation id
+     * and the result is collected later with {@link #serviceSyncEventResult}, or posted to the <code>callback</code>
+     * path of the service when it is given.
+     */
     @ServiceWebService(path = URL_SYNC_EVENT, methods = RestMethod.POST)
     public Json serviceSyncEvent(WebServiceRequest request){
-        logger.info("Event received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(syncEventMetrics, () -> {
+            logger.info("Event received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final Json event = request.getJsonBody();
+            if(event.is("async", false)){
+                final String callbackPath = event.string("callback");
+                final String correlationId = asyncSyncEvents.submit(() -> sendSyncEvent(event),
+                        StringUtils.isBlank(callbackPath) ? null : result -> serviceClient().postJson(callbackPath, result));
+                logger.info(String.format("Sync event [%s] accepted [%s]", event.string(Parameter.EVENT_NAME), correlationId));
+                return Json.map()
+                        .set("correlationId", correlationId)
+                        .set("status", AsyncSyncEvents.STATUS_PENDING);
+            }
+            return sendSyncEvent(event);
+        });
+    }
+
+    /** Result of an async sync event, waiting up to <code>wait</code> milliseconds while it is pending */
+    @ServiceWebService(path = URL_SYNC_EVENT_RESULT, methods = RestMethod.GET)
+    public Json serviceSyncEventResult(WebServiceRequest request){
+        return instrumented(syncEventResultMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final Json event = request.getJsonBody();
+            final String correlationId = request.getPathVariableByPattern(URL_SYNC_EVENT_RESULT, VAR_CORRELATION_ID);
+            final Json parameters = request.getParameters();
+            final Integer wait = parameters != null ? parameters.integer("wait") : null;
+            return asyncSyncEvents.poll(correlationId, wait != null ? wait : 0);
+        });
+    }
+
+    private Json sendSyncEvent(Json event){
         try {
-            Object response = events().sendSync(
+            final Object response = events().sendSync(
                     event.longInteger(Parameter.DATE),
                     event.string(Parameter.EVENT_NAME),
                     event.object(Parameter.DATA),
@@ -310,15 +708,7 @@ public class Proxy extends Service {
             );
             logger.info(String.format("Sync event sent to application [%s]", response != null ? response.toString() : "-"));
 
-            if (response == null) {
-                response = Json.map();
-            }
-
-            Json jsonResponse = Json.fromObject(response, false, true);
-            if (jsonResponse == null) {
-                jsonResponse = Json.map().set(Parameter.SYNC_RESPONSE, response);
-            }
-            return jsonResponse;
+            return syncEventResponse(response);
         } catch (Exception ex){
             logger.warn(String.format("Exception when send sync event to application [%s]", ex));
             return Json.map().set(Parameter.SYNC_ERROR_RESPONSE, ex.getMessage());
@@ -327,256 +717,670 @@ public class Proxy extends Service {
 
     @ServiceWebService(path = URL_APP_LOG, methods = RestMethod.POST)
     public void serviceAppLog(WebServiceRequest request){
-        logger.info("App log received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        callback(appLogMetrics, () -> {
+            logger.info("App log received");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final Json appLog = request.getJsonBody();
+            final Json appLog = request.getJsonBody();
 
-        appLogs().sendAppLog(
-                AppLogLevel.fromString(Parameter.APP_LOG_LEVEL),
-                appLog.string(Parameter.APP_LOG_MESSAGE),
-                null,
-                null
-        );
-        logger.info("App log sent to application");
+            appLogs().sendAppLog(
+                    AppLogLevel.fromString(Parameter.APP_LOG_LEVEL),
+                    appLog.string(Parameter.APP_LOG_MESSAGE),
+                    null,
+                    null
+            );
+            logger.info("App log sent to application");
+        });
     }
 
     @ServiceWebService(path = URL_FILE_METADATA, methods = RestMethod.GET)
     public Json serviceFileMetadata(WebServiceRequest request){
-        logger.info("File - get file metadata");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(fileMetadataMetrics, () -> {
+            logger.info("File - get file metadata");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String fileId = request.getPathVariable(VAR_FILE_ID);
-        final Json response = files().metadata(fileId);
+            final String fileId = request.getPathVariable(VAR_FILE_ID);
+            final Json response = files().metadata(fileId);
 
-        logger.info(String.format("File - metadata [%s]", response.string("fileName")));
-        return response;
+            logger.info(String.format("File - metadata [%s]", response.string("fileName")));
+            return response;
+        });
     }
 
     @ServiceWebService(path = URL_FILE_DOWNLOAD, methods = RestMethod.GET)
-    public InputStream serviceDownloadFile(WebServiceRequest request){
-        logger.info("File - download file from app");
-        checkToken(request.getHeader(Parameter.TOKEN));
-
-        final String fileId = request.getPathVariableByPattern(URL_FILE_DOWNLOAD, VAR_FILE_ID);
-
-        final DownloadedFile file = files().download(fileId);
-        if(file != null && file.file() != null) {
-            final File tmp = FilesUtils.copyInputStreamToTemporaryFile(fileId, file.file(), true);
-            if(tmp.exists()){
-                try{
-                    logger.info("File - input stream sent");
-                    return new FileInputStream(tmp);
-                } catch (Exception ex){
-                    logger.warn(String.format("Exception when download file: %s", ex.getMessage()), ex);
+    public Object serviceDownloadFile(WebServiceRequest request){
+        return callback(downloadFileMetrics, () -> {
+            logger.info("File - download file from app");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String fileId = request.getPathVariableByPattern(URL_FILE_DOWNLOAD, VAR_FILE_ID);
+            final String range = request.getHeader(HttpHeaders.RANGE);
+
+            final DownloadedFile file = files().download(fileId);
+            if(file != null && file.file() != null) {
+                if(StringUtils.isNotBlank(range)){
+                    final WebServiceResponse partial = partialFile(file, range);
+                    if(partial != null){
+                        logger.info(String.format("File - range [%s] sent", range));
+                        return partial;
+                    }
                 }
+                logger.info("File - input stream sent");
+                tempFilesAvoided.increment();
+                return new CountingInputStream(file.file(), bytesStreamed);
+            }
+            logger.warn(String.format("File [%s] was not downloaded", fileId));
+            return null;
+        });
+    }
+
+    /**
+     * Response with the part of the file asked in the range, or null to send the whole file when the range has
+     * to be ignored (see {@link ByteRange}). The platform does not serve ranges, so the bytes before the range
+     * are read and dropped by the proxy.
+     */
+    private WebServiceResponse partialFile(DownloadedFile file, String range){
+        final String lengthHeader = StringUtils.trimToNull(header(file.headers(), HttpHeaders.CONTENT_LENGTH));
+        final long length = lengthHeader != null && StringUtils.isNumeric(lengthHeader) ? Long.parseLong(lengthHeader) : -1;
+        final ByteRange byteRange = ByteRange.parse(range, length);
+        if(byteRange == null){
+            return null;
+        }
+        if(byteRange == ByteRange.UNSATISFIABLE){
+            closeQuietly(file.file());
+            final WebServiceResponse response = new WebServiceResponse(String.format("Range [%s] can not be satisfied", range));
+            response.setHttpCode(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, byteRange.contentRange(length));
+            return response;
+        }
+        final WebServiceResponse response = new WebServiceResponse(new CountingInputStream(
+                new RangeInputStream(file.file(), byteRange.start(), byteRange.length()), bytesStreamed));
+        response.setHttpCode(HttpStatus.SC_PARTIAL_CONTENT);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, ByteRange.UNIT);
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(byteRange.length()));
+        response.setHeader(HttpHeaders.CONTENT_RANGE, byteRange.contentRange(length));
+        final String contentType = header(file.headers(), HttpHeaders.CONTENT_TYPE);
+        if(contentType != null){
+            response.setHeader(HttpHeaders.CONTENT_TYPE, contentType);
+        }
+        return response;
+    }
+
+    private static String header(Json headers, String name){
+        if(headers == null){
+            return null;
+        }
+        for (String key : headers.keys()) {
+            if(name.equalsIgnoreCase(key)){
+                return headers.string(key);
             }
         }
-        logger.warn(String.format("File [%s] was not downloaded", fileId));
         return null;
     }
 
-    @ServiceWebService(path = URL_FILE_UPLOAD, methods = RestMethod.POST)
-    public Json serviceUploadFile(WebServiceRequest request){
-        logger.info("File - upload file to app");
-        checkToken(request.getHeader(Parameter.TOKEN));
+    @ServiceWebService(path = URL_UPLOADS, methods = RestMethod.POST)
+    public Json serviceCreateUpload(WebServiceRequest request){
+        return callback(createUploadMetrics, () -> {
+            logger.info("File - create upload session");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        InputStream fileIs = null;
-        String fileName = Parameter.FILE_UPLOAD_PARAMETER;
-        String fileContentType = null;
+            final Json body = request.getJsonBody();
+            if(body == null){
+                throw ServiceException.permanent(ErrorCode.API, "File name and size are required to create an upload");
+            }
+            return uploadSessions().create(body.string("fileName"), body.string("contentType"), body.longInteger("size", 0L),
+                    body.integer("chunkSize"), body.string("checksum"));
+        });
+    }
 
-        for (UploadedFile file : request.getFiles()) {
-            if(file.name().equals(Parameter.FILE_UPLOAD_PARAMETER)){
-                fileIs = file.file();
-                fileName = file.filename();
+    @ServiceWebService(path = URL_UPLOAD_CHUNK, methods = RestMethod.PUT)
+    public Json serviceUploadChunk(WebServiceRequest request){
+        return callback(uploadChunkMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-                if(StringUtils.isNotBlank(file.contentType())){
-                    fileContentType = file.contentType();
-                } else {
-                    fileContentType = file.headers().string(Parameter.CONTENT_TYPE.toLowerCase());
-                }
+            final String uploadId = request.getPathVariableByPattern(URL_UPLOAD_CHUNK, VAR_UPLOAD_ID);
+            final String chunk = request.getPathVariableByPattern(URL_UPLOAD_CHUNK, VAR_CHUNK);
+            final int index;
+            try {
+                index = Integer.parseInt(StringUtils.trimToEmpty(chunk));
+            } catch (NumberFormatException ex) {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Invalid chunk [%s]", chunk));
+            }
+            final Object body = request.getBody();
+            final InputStream content;
+            if(body instanceof InputStream){
+                content = (InputStream) body;
+            } else if(body instanceof String){
+                content = new ByteArrayInputStream(((String) body).getBytes(StandardCharsets.ISO_8859_1));
+            } else {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Chunk [%s] has no content", chunk));
+            }
+            try {
+                return uploadSessions().putChunk(uploadId, index, content, request.getHeader(CONTENT_DIGEST));
+            } finally {
+                closeQuietly(content);
             }
+        });
+    }
+
+    @ServiceWebService(path = URL_UPLOAD, methods = RestMethod.GET)
+    public Json serviceUploadStatus(WebServiceRequest request){
+        return callback(uploadStatusMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            return uploadSessions().status(request.getPathVariableByPattern(URL_UPLOAD, VAR_UPLOAD_ID));
+        });
+    }
+
+    @ServiceWebService(path = URL_UPLOAD_COMMIT, methods = RestMethod.POST)
+    public Json serviceCommitUpload(WebServiceRequest request){
+        return callback(commitUploadMetrics, () -> {
+            logger.info("File - commit upload session");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String uploadId = request.getPathVariableByPattern(URL_UPLOAD_COMMIT, VAR_UPLOAD_ID);
+            final Json response = uploadSessions().commit(uploadId, session -> {
+                try (InputStream content = session.open()) {
+                    return uploadFile(session.fileName(), content, session.contentType());
+                } catch (IOException ex) {
+                    throw ServiceException.permanent(ErrorCode.API, String.format("Exception when try to read upload [%s]: %s", uploadId, ex.getMessage()), ex);
+                }
+            });
+            logger.info(String.format("File - file [%s]", response != null ? response.string("fileId") : "-"));
+            return response;
+        });
+    }
+
+    @ServiceWebService(path = URL_UPLOAD, methods = RestMethod.DELETE)
+    public Json serviceAbortUpload(WebServiceRequest request){
+        return callback(abortUploadMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String uploadId = request.getPathVariableByPattern(URL_UPLOAD, VAR_UPLOAD_ID);
+            uploadSessions().abort(uploadId);
+            return Json.map().set("uploadId", uploadId).set("aborted", true);
+        });
+    }
+
+    private UploadSessions uploadSessions(){
+        final UploadSessions sessions = uploadSessions;
+        if(sessions == null){
+            throw ServiceException.permanent(ErrorCode.API, "Chunked uploads are not available");
         }
+        return sessions;
+    }
 
-        if(fileIs == null){
-            Object body = request.getBody();
-            if(body instanceof String) {
-                try {
-                    fileIs = new ByteArrayInputStream(((String) body).getBytes(StandardCharsets.ISO_8859_1));
-                } catch (Exception ex) {
-                    logger.warn(String.format("Exception when try to parse the file as stream: %s", ex.getMessage()), ex);
+    @ServiceWebService(path = URL_FILE_UPLOAD, methods = RestMethod.POST)
+    public Json serviceUploadFile(WebServiceRequest request){
+        return callback(uploadFileMetrics, () -> {
+            logger.info("File - upload file to app");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            InputStream fileIs = null;
+            String fileName = Parameter.FILE_UPLOAD_PARAMETER;
+            String fileContentType = null;
+
+            for (UploadedFile file : request.getFiles()) {
+                if(file.name().equals(Parameter.FILE_UPLOAD_PARAMETER)){
+                    fileIs = file.file();
+                    fileName = file.filename();
+
+                    if(StringUtils.isNotBlank(file.contentType())){
+                        fileContentType = file.contentType();
+                    } else {
+                        fileContentType = file.headers().string(Parameter.CONTENT_TYPE.toLowerCase());
+                    }
                 }
-            } else if(body instanceof InputStream){
-                fileIs = (InputStream) body;
             }
-        }
 
-        Json response = Json.map();
-        if(fileIs != null) {
-            try {
-                final File tmp = FilesUtils.copyInputStreamToTemporaryFile(fileName, fileIs, true);
-                if (tmp.exists()) {
-                    response = files().upload(fileName, new FileInputStream(tmp), fileContentType);
-                } else {
-                    logger.warn("Temporal file was not created");
+            if(fileIs == null){
+                Object body = request.getBody();
+                if(body instanceof String) {
+                    try {
+                        fileIs = new ByteArrayInputStream(((String) body).getBytes(StandardCharsets.ISO_8859_1));
+                    } catch (Exception ex) {
+                        logger.warn(String.format("Exception when try to parse the file as stream: %s", ex.getMessage()), ex);
+                    }
+                } else if(body instanceof InputStream){
+                    fileIs = (InputStream) body;
                 }
-            } catch (Exception ex) {
-                logger.warn(String.format("Exception when try to upload file to application: %s", ex.getMessage()), ex);
             }
-        }
 
-        if(response != null) {
-            logger.info(String.format("File - file [%s]", response.string("fileId")));
-        } else {
-            logger.warn("Uploaded file can not be processed");
-        }
-        return response;
+            Json response = Json.map();
+            if(fileIs != null) {
+                try {
+                    tempFilesAvoided.increment();
+                    response = uploadFile(fileName, fileIs, fileContentType);
+                } catch (Exception ex) {
+                    logger.warn(String.format("Exception when try to upload file to application: %s", ex.getMessage()), ex);
+                } finally {
+                    closeQuietly(fileIs);
+                }
+            }
+
+            if(response != null) {
+                logger.info(String.format("File - file [%s]", response.string("fileId")));
+            } else {
+                logger.warn("Uploaded file can not be processed");
+            }
+            return response;
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE, methods = RestMethod.POST)
     public Json serviceDataStoreSaveDocument(WebServiceRequest request){
-        logger.info("Data store - save received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreSaveDocumentMetrics, () -> {
+            logger.info("Data store - save received");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final Json document = request.getJsonBody();
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final Json document = request.getJsonBody();
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
 
-        return internalDataStoreSaveDocument("saved", dataStoreName, null, document);
+            return internalDataStoreSaveDocument("saved", dataStoreName, null, document);
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE_BY_ID, methods = RestMethod.PUT)
     public Json serviceDataStoreUpdateDocument(WebServiceRequest request){
-        logger.info("Data store - update received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreUpdateDocumentMetrics, () -> {
+            logger.info("Data store - update received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final Json document = request.getJsonBody();
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
+
+            return internalDataStoreSaveDocument("updated", dataStoreName, documentId, document);
+        });
+    }
+
+    @ServiceWebService(path = URL_DATA_STORE_BULK, methods = RestMethod.POST)
+    public Json serviceDataStoreSaveDocuments(WebServiceRequest request){
+        return callback(dataStoreSaveDocumentsMetrics, () -> {
+            logger.info("Data store - bulk save received");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final Json document = request.getJsonBody();
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-        final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            // documents with the same id are saved in order, so the last one wins instead of inserting duplicates
+            final Json summary = batchProcessor.process(batchItemsIterator(request.getBody()), "saved", item -> toBatchItemJson(item).string(DATA_STORE_ID), item -> {
+                final Json document = internalDataStoreSaveDocument("saved", dataStoreName, null, toBatchItemJson(item));
+                return Json.map()
+                        .set(DATA_STORE_ID, document.string(DATA_STORE_ID))
+                        .set("document", document);
+            });
 
-        return internalDataStoreSaveDocument("updated", dataStoreName, documentId, document);
+            logger.info(String.format("Data store - bulk saved [%s], failed [%s]", summary.integer("saved"), summary.integer("failed")));
+            return summary;
+        });
+    }
+
+    @ServiceWebService(path = URL_DATA_STORE_BULK_REMOVE, methods = RestMethod.POST)
+    public Json serviceDataStoreRemoveDocumentsById(WebServiceRequest request){
+        return callback(dataStoreRemoveDocumentsByIdMetrics, () -> {
+            logger.info("Data store - bulk remove received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final Json summary = batchProcessor.process(batchItemsIterator(request.getBody()), "removed", Proxy::batchItemId, item -> {
+                final String documentId = batchItemId(item);
+                if(!internalDataStoreRemoveDocumentById(dataStoreName, documentId)){
+                    throw ServiceException.permanent(ErrorCode.API, String.format("Document [%s] not found", documentId));
+                }
+                return Json.map().set(DATA_STORE_ID, documentId);
+            });
+
+            logger.info(String.format("Data store - bulk removed [%s], failed [%s]", summary.integer("removed"), summary.integer("failed")));
+            return summary;
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE_COUNT, methods = RestMethod.GET)
     public Json serviceDataStoreCountDocuments(WebServiceRequest request){
-        logger.info("Data store - count");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreCountDocumentsMetrics, () -> {
+            logger.info("Data store - count");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-        final Json parameters = request.getParameters();
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final Json parameters = request.getParameters();
 
-        final DataStoreResponse response = internalDataStoreFindDocuments(dataStoreName, parameters);
+            final long total = dataStore.count(internalDataStoreFilter(dataStoreName, parameters));
 
-        logger.info(String.format("Data store - count [%s]", response.items().size()));
-        return Json.map()
-                .set(Parameter.DATA_STORE_TOTAL, response.items().size());
+            logger.info(String.format("Data store - count [%s]", total));
+            return Json.map()
+                    .set(Parameter.DATA_STORE_TOTAL, total);
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE_BY_ID, methods = RestMethod.GET)
     public Json serviceDataStoreFindDocumentById(WebServiceRequest request){
-        logger.info("Data store - find by id");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreFindDocumentByIdMetrics, () -> {
+            logger.info("Data store - find by id");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-        final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
 
-        return internalDataStoreFindDocumentById(dataStoreName, documentId, true);
+            final DocumentCache cache = documentCache;
+            if(cache == null){
+                return internalDataStoreFindDocumentById(dataStoreName, documentId, true);
+            }
+            final Json cached = cache.get(dataStoreName, documentId);
+            if(cached != null){
+                logger.info(String.format("Data store - found in cache [%s]", documentId));
+                return cached;
+            }
+            final long generation = cache.generation();
+            final Json document = internalDataStoreFindDocumentById(dataStoreName, documentId, true);
+            if(document != null && !document.isEmpty()){
+                cache.put(dataStoreName, documentId, document, generation);
+            }
+            return document;
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE, methods = RestMethod.GET)
     public Json serviceDataStoreFindDocuments(WebServiceRequest request){
-        logger.info("Data store - find");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreFindDocumentsMetrics, () -> {
+            logger.info("Data store - find");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-        final Json parameters = request.getParameters();
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final Json parameters = request.getParameters();
 
-        final DataStoreResponse response = internalDataStoreFindDocuments(dataStoreName, parameters);
+            final DataStoreResponse response = internalDataStoreFindDocuments(dataStoreName, parameters);
 
-        logger.info(String.format("Data store - found [%s]", response.items().size()));
-        return Json.map()
-                .set(Parameter.DATA_STORE_ITEMS, response.items())
-                .set(Parameter.DATA_STORE_TOTAL, response.total())
-                .set(Parameter.PAGINATION_OFFSET, response.offset());
+            logger.info(String.format("Data store - found [%s]", response.items().size()));
+            return Json.map()
+                    .set(Parameter.DATA_STORE_ITEMS, response.items())
+                    .set(Parameter.DATA_STORE_TOTAL, response.total())
+                    .set(Parameter.PAGINATION_OFFSET, response.offset());
+        });
+    }
+
+    @ServiceWebService(path = URL_DATA_STORE_STREAM, methods = RestMethod.GET)
+    public InputStream serviceDataStoreStreamDocuments(WebServiceRequest request){
+        return callback(dataStoreStreamDocumentsMetrics, () -> {
+            logger.info("Data store - stream");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            final Json parameters = request.getParameters();
+            final Integer pageSize = parameters != null ? parameters.integer(DATA_STORE_SIZE) : null;
+            final int size = Math.min(pageSize != null && pageSize > 0 ? pageSize : DATA_STORE_STREAM_PAGE_SIZE, DATA_STORE_MAX_PAGE_SIZE);
+
+            return new DocumentsInputStream(offset -> {
+                final Json filter = internalDataStoreFilter(dataStoreName, parameters)
+                        .set(DATA_STORE_SIZE, size)
+                        .setIfNotNull(DATA_STORE_OFFSET, offset);
+                return internalDataStoreFindDocuments(filter);
+            });
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE_BY_ID, methods = RestMethod.DELETE)
     public Json serviceDataStoreRemoveDocumentById(WebServiceRequest request){
-        logger.info("Data store - remove");
-        checkToken(request.getHeader(Parameter.TOKEN));
-
-        boolean removed = false;
+        return callback(dataStoreRemoveDocumentByIdMetrics, () -> {
+            logger.info("Data store - remove");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
-        if(StringUtils.isNotBlank(documentId)) {
+            final String documentId = request.getPathVariable(VAR_DOCUMENT_ID);
             final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-            final Json oldDocument = internalDataStoreFindDocumentById(dataStoreName, documentId, false);
-            if(oldDocument != null && !oldDocument.isEmpty()){
-                final String oldId = oldDocument.string(DATA_STORE_ID);
-                if(StringUtils.isNotBlank(oldId)){
-                    dataStore.removeById(oldId);
-                    removed = true;
-                }
-            }
-        }
+            final boolean removed = internalDataStoreRemoveDocumentById(dataStoreName, documentId);
 
-        logger.info(String.format("Data store - removed [%s]", removed));
-        return Json.map()
-                .set(Parameter.DATA_STORE_RESULT, removed)
-                .set(Parameter.DATA_STORE_TOTAL, removed ? 1 : 0);
+            logger.info(String.format("Data store - removed [%s]", removed));
+            return Json.map()
+                    .set(Parameter.DATA_STORE_RESULT, removed)
+                    .set(Parameter.DATA_STORE_TOTAL, removed ? 1 : 0);
+        });
     }
 
     @ServiceWebService(path = URL_DATA_STORE, methods = RestMethod.DELETE)
     public Json serviceDataStoreRemoveDocuments(WebServiceRequest request){
-        logger.info("Data store - remove all");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(dataStoreRemoveDocumentsMetrics, () -> {
+            logger.info("Data store - remove all");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
-        boolean removed = false;
-        if(StringUtils.isNotBlank(dataStoreName)) {
-            final Json parameters = request.getParameters();
-            final Json filter = internalDataStoreFilter(dataStoreName, parameters);
-
-            removed = dataStore.remove(filter);
-        }
+            final String dataStoreName = request.getPathVariable(VAR_DATA_STORE);
+            boolean removed = false;
+            if(StringUtils.isNotBlank(dataStoreName)) {
+                final Json parameters = request.getParameters();
+                final Json filter = internalDataStoreFilter(dataStoreName, parameters);
+
+                removed = dataStore.remove(filter);
+                documentIdIndex.removeAll(dataStoreName);
+                if(documentCache != null){
+                    documentCache.removeAll(dataStoreName);
+                }
+            }
 
-        logger.info(String.format("Data store - removed all [%s]", removed));
-        return Json.map()
-                .set(Parameter.DATA_STORE_RESULT, removed)
-                .set(Parameter.DATA_STORE_TOTAL, removed ? 1 : 0);
+            logger.info(String.format("Data store - removed all [%s]", removed));
+            return Json.map()
+                    .set(Parameter.DATA_STORE_RESULT, removed)
+                    .set(Parameter.DATA_STORE_TOTAL, removed ? 1 : 0);
+        });
     }
 
     @ServiceWebService(path = URL_LOCK, methods = RestMethod.POST)
     public Json serviceLockKey(WebServiceRequest request){
-        logger.info("Lock key request received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(lockKeyMetrics, () -> {
+            logger.info("Lock key request received");
+            checkToken(request.getHeader(Parameter.TOKEN));
 
-        final String key = request.getPathVariableByPattern(URL_LOCK, VAR_KEY);
-        boolean acquired = locks().lock(key);
-        logger.info(String.format("Lock acquired [%s]: %s", key, acquired));
+            final String key = request.getPathVariableByPattern(URL_LOCK, VAR_KEY);
+            boolean acquired = locks().lock(key);
+            logger.info(String.format("Lock acquired [%s]: %s", key, acquired));
 
-        return Json.map().set(Parameter.LOCK_ACQUIRED, acquired);
+            return Json.map().set(Parameter.LOCK_ACQUIRED, acquired);
+        });
     }
 
     @ServiceWebService(path = URL_LOCK, methods = RestMethod.DELETE)
     public Json serviceUnlockKey(WebServiceRequest request){
-        logger.info("Unlock key request received");
-        checkToken(request.getHeader(Parameter.TOKEN));
+        return callback(unlockKeyMetrics, () -> {
+            logger.info("Unlock key request received");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String key = request.getPathVariableByPattern(URL_LOCK, VAR_KEY);
+            boolean lockReleased = locks().unlock(key);
+            logger.info(String.format("Lock released [%s]: %s", key, lockReleased));
 
-        final String key = request.getPathVariableByPattern(URL_LOCK, VAR_KEY);
-        boolean lockReleased = locks().unlock(key);
-        logger.info(String.format("Lock released [%s]: %s", key, lockReleased));
+            return Json.map().set(Parameter.LOCK_RELEASED, lockReleased);
+        });
+    }
+
+    /**
+     * Acquires a lease over the <code>keys</code> of the body, waiting up to <code>wait</code> milliseconds in a
+     * fair queue; the lease lasts <code>ttl</code> milliseconds unless it is renewed. It goes through its own
+     * bulkhead instead of the one of service requests, so callers waiting for a lock do not block other requests
+     * and can not take every server thread.
+     */
+    @ServiceWebService(path = URL_LEASES, methods = RestMethod.POST)
+    public Json serviceAcquireLease(WebServiceRequest request){
+        return instrumented(acquireLeaseMetrics, () -> leasesBulkhead.execute(() -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final Json body = request.getJsonBody();
+            final List<String> keys = body != null ? body.strings("keys") : null;
+            if(keys == null || keys.isEmpty()){
+                throw ServiceException.permanent(ErrorCode.API, "Keys are required to acquire a lease");
+            }
+            final long waitMillis = body.longInteger("wait", 0L);
+            final long ttlMillis = body.longInteger("ttl", LeaseLocks.DEFAULT_TTL_MILLIS);
+
+            final LeaseLocks.Lease lease = leaseLocks.acquire(keys, waitMillis, ttlMillis);
+            logger.info(String.format("Lease over keys %s acquired: %s", keys, lease != null ? lease.id() : "-"));
+            if(lease == null){
+                return Json.map().set(Parameter.LOCK_ACQUIRED, false);
+            }
+            return lease.toJson().set(Parameter.LOCK_ACQUIRED, true);
+        }));
+    }
+
+    @ServiceWebService(path = URL_LEASE, methods = RestMethod.PUT)
+    public Json serviceRenewLease(WebServiceRequest request){
+        return callback(renewLeaseMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String leaseId = request.getPathVariableByPattern(URL_LEASE, VAR_LEASE_ID);
+            final Json body = request.getJsonBody();
+            final long ttlMillis = body != null ? body.longInteger("ttl", 0L) : 0L;
+
+            final LeaseLocks.Lease lease = leaseLocks.renew(leaseId, ttlMillis);
+            if(lease == null){
+                return Json.map().set("renewed", false);
+            }
+            return lease.toJson().set("renewed", true);
+        });
+    }
+
+    @ServiceWebService(path = URL_LEASE, methods = RestMethod.DELETE)
+    public Json serviceReleaseLease(WebServiceRequest request){
+        return callback(releaseLeaseMetrics, () -> {
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            final String leaseId = request.getPathVariableByPattern(URL_LEASE, VAR_LEASE_ID);
+            final boolean released = leaseLocks.release(leaseId);
+            logger.info(String.format("Lease released [%s]: %s", leaseId, released));
 
-        return Json.map().set(Parameter.LOCK_RELEASED, lockReleased);
+            return Json.map().set(Parameter.LOCK_RELEASED, released);
+        });
     }
 
     @ServiceWebService(path = URL_CLEAR_CACHE, methods = RestMethod.PUT)
     public Json serviceClearCache(WebServiceRequest request){
-        logger.info("Clear cache");
+        return instrumented(clearCacheMetrics, () -> {
+            logger.info("Clear cache");
+            checkToken(request.getHeader(Parameter.TOKEN));
+
+            management().clearCache();
+            if(configurationCache != null){
+                configurationCache.clear();
+            }
+            documentIdIndex.clear();
+            if(responseCache != null){
+                responseCache.clear();
+            }
+            if(documentCache != null){
+                documentCache.clear();
+            }
+
+            return Json.map();
+        });
+    }
+
+    @ServiceWebService(path = URL_PROXY_STATS, methods = RestMethod.GET)
+    public Json serviceProxyStats(WebServiceRequest request){
+        checkToken(request.getHeader(Parameter.TOKEN));
+
+        return proxyStats()
+                .set("endpoints", metrics.stats());
+    }
+
+    /**
+     * Streams the file to the application. Files up to {@link #FILE_RETRY_BUFFER_SIZE} stay marked in memory
+     * so the upload can be retried once without reading the source again.
+     */
+    private Json uploadFile(String fileName, InputStream fileIs, String fileContentType){
+        final BufferedInputStream content = new BufferedInputStream(new CountingInputStream(fileIs, bytesStreamed), FILE_BUFFER_SIZE);
+        content.mark(FILE_RETRY_BUFFER_SIZE);
+        try {
+            return files().upload(fileName, content, fileContentType);
+        } catch (ServiceException ex) {
+            try {
+                content.reset();
+            } catch (IOException resetEx) {
+                throw ex;
+            }
+            logger.info(String.format("Retrying upload of file [%s]: %s", fileName, ex.getMessage()));
+            return files().upload(fileName, content, fileContentType);
+        }
+    }
+
+    private static void closeQuietly(InputStream is){
+        try {
+            is.close();
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to close stream: %s", ex.getMessage()));
+        }
+    }
+
+    @ServiceWebService(path = URL_PROXY_METRICS, methods = RestMethod.GET)
+    public WebServiceResponse serviceProxyMetrics(WebServiceRequest request){
         checkToken(request.getHeader(Parameter.TOKEN));
 
-        management().clearCache();
+        final WebServiceResponse response = new WebServiceResponse(metrics.prometheus(proxyStats()));
+        response.setHeader(Parameter.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        return response;
+    }
+
+    /** State of the components of the proxy (pools, caches, circuit breaker) */
+    private Json proxyStats(){
+        return Json.map()
+                .setIfNotNull("connectionPool", serviceClient != null ? serviceClient.stats() : null)
+                .setIfNotNull("circuitBreaker", serviceClient != null ? serviceClient.circuitBreakerStats() : null)
+                .setIfNotNull("targets", serviceClient != null ? serviceClient.targetsStats() : null)
+                .setIfNotNull("coalescing", serviceClient != null ? serviceClient.coalescingStats() : null)
+                .setIfNotNull("compression", serviceClient != null ? serviceClient.compressionStats() : null)
+                .setIfNotNull("tunnel", serviceTunnel != null ? serviceTunnel.stats() : null)
+                .setIfNotNull("configurationCache", configurationCache != null ? configurationCache.stats() : null)
+                .set("bulkheads", Json.map()
+                        .set("functions", functionsBulkhead.stats())
+                        .set("webhooks", webhooksBulkhead.stats())
+                        .set("callbacks", callbacksBulkhead.stats())
+                        .set("leases", leasesBulkhead.stats()))
+                .set("documentIdIndex", documentIdIndex.stats())
+                .setIfNotNull("leases", leaseLocks != null ? leaseLocks.stats() : null)
+                .setIfNotNull("asyncSyncEvents", asyncSyncEvents != null ? asyncSyncEvents.stats() : null)
+                .setIfNotNull("uploads", uploadSessions != null ? uploadSessions.stats() : null)
+                .setIfNotNull("accessLog", accessLog != null ? accessLog.stats() : null)
+                .setIfNotNull("documentCache", documentCache != null ? documentCache.stats() : null)
+                .setIfNotNull("responseCache", responseCache != null ? responseCache.stats() : null)
+                .set("files", Json.map()
+                        .set("bytesStreamed", bytesStreamed.sum())
+                        .set("tempFilesAvoided", tempFilesAvoided.sum()))
+                .set("jvm", jvmStats());
+    }
+
+    /** Heap and garbage collection of the proxy process */
+    private static Json jvmStats(){
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long gcCount = 0;
+        long gcTimeMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTimeMillis += Math.max(0, gc.getCollectionTime());
+        }
+        return Json.map()
+                .set("heapUsed", heap.getUsed())
+                .set("heapCommitted", heap.getCommitted())
+                .set("heapMax", heap.getMax())
+                .set("gcCount", gcCount)
+                .set("gcTimeMillis", gcTimeMillis)
+                .set("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+    }
 
-        return Json.map();
+    /** Runs a request coming from the service through its bulkhead, recording its metrics */
+    private <T> T callback(ProxyMetrics.Endpoint endpoint, Supplier<T> handler){
+        return instrumented(endpoint, () -> callbacksBulkhead.execute(handler));
+    }
+
+    private void callback(ProxyMetrics.Endpoint endpoint, Runnable handler){
+        instrumented(endpoint, () -> {
+            callbacksBulkhead.execute(handler);
+            return null;
+        });
+    }
+
+    private static <T> T instrumented(ProxyMetrics.Endpoint endpoint, Supplier<T> handler){
+        final long start = endpoint.begin();
+        boolean failed = true;
+        try {
+            final T result = handler.get();
+            failed = false;
+            return result;
+        } finally {
+            endpoint.end(start, failed);
+        }
     }
 
     /** Check the token of the request */
@@ -586,29 +1390,52 @@ public class Proxy extends Service {
         }
     }
 
+    private static Bulkhead bulkhead(String name, Integer maxConcurrent){
+        return new Bulkhead(name, positiveOrDefault(maxConcurrent, Bulkhead.DEFAULT_MAX_CONCURRENT), Bulkhead.DEFAULT_MAX_WAITING, Bulkhead.DEFAULT_MAX_WAIT_SECONDS);
+    }
+
+    /** Web server of this proxy, where requests of the service received through the tunnel are replayed */
+    private static String localWebServicesUri(){
+        String port = System.getProperty(WEB_SERVICES_PORT_PROPERTY);
+        if(StringUtils.isBlank(port)){
+            port = System.getenv(WEB_SERVICES_PORT_PROPERTY);
+        }
+        return "http://127.0.0.1:" + (StringUtils.isNotBlank(port) ? port.trim() : DEFAULT_WEB_SERVICES_PORT);
+    }
+
+    private static int positiveOrDefault(Integer value, int defaultValue){
+        return value != null && value > 0 ? value : defaultValue;
+    }
+
     private Json internalDataStoreSaveDocument(String label, String dataStoreName, String documentId, Json document){
         document.set(DATA_STORE_NAME, dataStoreName);
 
         String id = documentId;
+        boolean generatedId = false;
         if(StringUtils.isBlank(id)) {
             id = document.string(DATA_STORE_ID);
             if (StringUtils.isBlank(id)) {
                 id = Strings.randomUUIDString();
+                generatedId = true;
             }
         }
         document.set(DATA_STORE_NEW_ID, id)
                 .remove(DATA_STORE_ID);
 
-        final Json oldDocument = internalDataStoreFindDocumentById(dataStoreName, id, false);
-        if(oldDocument != null && !oldDocument.isEmpty()){
-            final String oldId = oldDocument.string(DATA_STORE_ID);
-            if(StringUtils.isNotBlank(oldId)){
-                document.set(DATA_STORE_ID, oldId);
-            }
+        // a generated id can not belong to an existing document
+        final String oldId = generatedId ? null : internalDataStoreInternalId(dataStoreName, id);
+        if(StringUtils.isNotBlank(oldId)){
+            document.set(DATA_STORE_ID, oldId);
         }
 
         final Json response = dataStore.save(document);
         final String internalId = response.string(DATA_STORE_NEW_ID);
+        if(StringUtils.isNotBlank(response.string(DATA_STORE_ID))){
+            documentIdIndex.put(dataStoreName, id, response.string(DATA_STORE_ID));
+        }
+        if(documentCache != null){
+            documentCache.remove(dataStoreName, id);
+        }
         logger.info(String.format("Data store - %s [%s], internal [%s]", label, id, internalId));
 
         document.set(DATA_STORE_ID, internalId)
@@ -617,7 +1444,41 @@ public class Proxy extends Service {
         return document;
     }
 
-    private Json internalDataStoreFilter(String dataStoreName, Json parameters){
+    private boolean internalDataStoreRemoveDocumentById(String dataStoreName, String documentId){
+        if(StringUtils.isBlank(documentId)) {
+            return false;
+        }
+        final String oldId = internalDataStoreInternalId(dataStoreName, documentId);
+        if(StringUtils.isBlank(oldId)){
+            return false;
+        }
+        final boolean removed = dataStore.removeById(oldId);
+        documentIdIndex.remove(dataStoreName, documentId);
+        if(documentCache != null){
+            documentCache.remove(dataStoreName, documentId);
+        }
+        return removed;
+    }
+
+    /** Internal id of the document with the given id, taken from the index when it is known */
+    private String internalDataStoreInternalId(String dataStoreName, String documentId){
+        final String indexedId = documentIdIndex.get(dataStoreName, documentId);
+        if(indexedId != null){
+            return indexedId;
+        }
+        final Json oldDocument = internalDataStoreFindDocumentById(dataStoreName, documentId, false);
+        if(oldDocument != null && !oldDocument.isEmpty()){
+            final String oldId = oldDocument.string(DATA_STORE_ID);
+            if(StringUtils.isNotBlank(oldId)){
+                documentIdIndex.put(dataStoreName, documentId, oldId);
+                return oldId;
+            }
+        }
+        return null;
+    }
+
+    /** Filter of the documents of the data store; pagination parameters are not included */
+    static Json internalDataStoreFilter(String dataStoreName, Json parameters){
         final Json filter = Json.map();
         filter.set(DATA_STORE_NAME, dataStoreName);
 
@@ -625,7 +1486,7 @@ public class Proxy extends Service {
             parameters.forEachMapString((key, value) -> {
                 if(DATA_STORE_ID.equals(key)){
                     filter.set(DATA_STORE_NEW_ID, value);
-                } else {
+                } else if(!DATA_STORE_SIZE.equals(key) && !DATA_STORE_OFFSET.equals(key)){
                     filter.set(key, value);
                 }
             });
@@ -636,17 +1497,33 @@ public class Proxy extends Service {
     private DataStoreResponse internalDataStoreFindDocuments(String dataStoreName, Json parameters){
         final Json filter = internalDataStoreFilter(dataStoreName, parameters);
 
+        // the page is controlled by the caller with the size and the offset returned by the previous page
+        if(parameters != null){
+            final Integer size = parameters.integer(DATA_STORE_SIZE);
+            if(size != null && size > 0){
+                filter.set(DATA_STORE_SIZE, Math.min(size, DATA_STORE_MAX_PAGE_SIZE));
+            }
+            filter.setIfNotEmpty(DATA_STORE_OFFSET, parameters.string(DATA_STORE_OFFSET));
+        }
+        return internalDataStoreFindDocuments(filter);
+    }
+
+    private DataStoreResponse internalDataStoreFindDocuments(Json filter){
         final DataStoreResponse response = dataStore.find(filter);
         final List<Json> items = response.items();
-        items.forEach(document -> document
-                .set(DATA_STORE_ID, document.string(DATA_STORE_NEW_ID))
-                .remove(DATA_STORE_NEW_ID)
-                .remove(DATA_STORE_NAME)
-        );
+        items.forEach(Proxy::internalDataStoreConvertDocument);
 
         return new DataStoreResponse(items, response.total(), response.offset());
     }
 
+    /** Replaces the internal id of the document by the id used by the service */
+    static Json internalDataStoreConvertDocument(Json document){
+        return document
+                .set(DATA_STORE_ID, document.string(DATA_STORE_NEW_ID))
+                .remove(DATA_STORE_NEW_ID)
+                .remove(DATA_STORE_NAME);
+    }
+
     private Json internalDataStoreFindDocumentById(String dataStoreName, String documentId, boolean convert){
         if(StringUtils.isBlank(dataStoreName) || StringUtils.isBlank(documentId)){
             return Json.map();
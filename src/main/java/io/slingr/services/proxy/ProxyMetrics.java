@@ -0,0 +1,135 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, throughput, errors and in-flight requests of every endpoint and interceptor of the proxy.
+ * <p>
+ * Metrics are exposed as json and in the Prometheus text format. Recording a request does not allocate.
+ */
+public class ProxyMetrics {
+    private static final String PREFIX = "proxy_";
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /** Metrics of the endpoint, created the first time it is requested */
+    public Endpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, Endpoint::new);
+    }
+
+    public Json stats() {
+        final Json stats = Json.map();
+        new TreeMap<>(endpoints).forEach((name, endpoint) -> stats.set(name, Json.map()
+                .set("requests", endpoint.histogram.count())
+                .set("errors", endpoint.errors.sum())
+                .set("inFlight", endpoint.inFlight.get())
+                .set("p50Micros", endpoint.histogram.percentileMicros(50))
+                .set("p99Micros", endpoint.histogram.percentileMicros(99))));
+        return stats;
+    }
+
+    /**
+     * Writes the metrics of the endpoints in the Prometheus text format, followed by the given stats
+     * as gauges (numbers and booleans, named after their path in the json)
+     */
+    public String prometheus(Json gauges) {
+        final StringBuilder sb = new StringBuilder();
+        final Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+
+        sb.append("# HELP proxy_request_duration_seconds Latency of the requests processed by the proxy\n");
+        sb.append("# TYPE proxy_request_duration_seconds histogram\n");
+        sorted.forEach((name, endpoint) -> {
+            long accumulated = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                accumulated += endpoint.histogram.bucketCount(i);
+                sb.append("proxy_request_duration_seconds_bucket{endpoint=\"").append(name).append("\",le=\"")
+                        .append(LatencyHistogram.upperBoundMicros(i) / 1_000_000d).append("\"} ").append(accumulated).append('\n');
+            }
+            accumulated += endpoint.histogram.bucketCount(LatencyHistogram.BUCKETS);
+            sb.append("proxy_request_duration_seconds_bucket{endpoint=\"").append(name).append("\",le=\"+Inf\"} ").append(accumulated).append('\n');
+            sb.append("proxy_request_duration_seconds_sum{endpoint=\"").append(name).append("\"} ").append(endpoint.histogram.sumMicros() / 1_000_000d).append('\n');
+            sb.append("proxy_request_duration_seconds_count{endpoint=\"").append(name).append("\"} ").append(accumulated).append('\n');
+        });
+
+        sb.append("# HELP proxy_request_errors_total Requests processed by the proxy that failed\n");
+        sb.append("# TYPE proxy_request_errors_total counter\n");
+        sorted.forEach((name, endpoint) -> sb.append("proxy_request_errors_total{endpoint=\"").append(name).append("\"} ").append(endpoint.errors.sum()).append('\n'));
+
+        sb.append("# HELP proxy_requests_in_flight Requests being processed by the proxy\n");
+        sb.append("# TYPE proxy_requests_in_flight gauge\n");
+        sorted.forEach((name, endpoint) -> sb.append("proxy_requests_in_flight{endpoint=\"").append(name).append("\"} ").append(endpoint.inFlight.get()).append('\n'));
+
+        if (gauges != null) {
+            appendGauges(sb, PREFIX, gauges);
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendGauges(StringBuilder sb, String prefix, Json json) {
+        for (String key : json.keys()) {
+            final String name = prefix + snakeCase(key);
+            final Object value = json.object(key);
+            if (value instanceof Json) {
+                appendGauges(sb, name + "_", (Json) value);
+            } else if (value instanceof Map) {
+                appendGauges(sb, name + "_", Json.fromMap((Map<String, ?>) value));
+            } else if (value instanceof Number) {
+                sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+            } else if (value instanceof Boolean) {
+                sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append((Boolean) value ? 1 : 0).append('\n');
+            }
+        }
+    }
+
+    private static String snakeCase(String key) {
+        final StringBuilder sb = new StringBuilder(key.length() + 4);
+        for (char c : key.toCharArray()) {
+            if (Character.isUpperCase(c)) {
+                sb.append('_').append(Character.toLowerCase(c));
+            } else if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Metrics of one endpoint */
+    public static class Endpoint {
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /** Marks the start of a request and returns the time to pass to {@link #end(long, boolean)} */
+        public long begin() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        public void end(long start, boolean failed) {
+            histogram.record(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+            if (failed) {
+                errors.increment();
+            }
+        }
+    }
+}
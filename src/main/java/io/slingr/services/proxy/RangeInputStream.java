@@ -0,0 +1,71 @@
+package io.slingr.services.proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream limited to a range of bytes of another stream. The bytes before the range are skipped on the
+ * first read, and the stream ends after the last byte of the range.
+ */
+class RangeInputStream extends FilterInputStream {
+    private long toSkip;
+    private long remaining;
+
+    RangeInputStream(InputStream in, long start, long length) {
+        super(in);
+        this.toSkip = start;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        skipToStart();
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int b = super.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        skipToStart();
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int read = super.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        skipToStart();
+        final long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return toSkip > 0 ? 0 : (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void skipToStart() throws IOException {
+        if (toSkip > 0) {
+            in.skipNBytes(toSkip);
+            toSkip = 0;
+        }
+    }
+}
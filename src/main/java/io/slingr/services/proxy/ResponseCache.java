@@ -0,0 +1,432 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Shared HTTP cache for the responses of GET webhooks, following the headers sent by the service
+ * (RFC 9111).
+ * <p>
+ * Responses are stored only when they have explicit freshness (<code>s-maxage</code>, <code>max-age</code> or
+ * <code>Expires</code>) and are not <code>private</code> or <code>no-store</code>; <code>Vary</code> selects
+ * between variants of the same URL. Stale responses with a validator are revalidated with a conditional
+ * request, and conditional requests of callers are answered with <code>304</code> from the cache. Entries are
+ * discarded by size in least recently used order and when the same path is changed through the proxy.
+ */
+public class ResponseCache {
+    private static final Set<Integer> CACHEABLE_STATUSES = Set.of(HttpStatus.SC_OK, HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION,
+            HttpStatus.SC_NO_CONTENT, HttpStatus.SC_MULTIPLE_CHOICES, HttpStatus.SC_MOVED_PERMANENTLY, HttpStatus.SC_NOT_FOUND, HttpStatus.SC_GONE);
+    private static final Set<String> NOT_MODIFIED_HEADERS = ServiceClient.caseInsensitiveSet(HttpHeaders.CACHE_CONTROL, HttpHeaders.CONTENT_LOCATION,
+            HttpHeaders.DATE, HttpHeaders.ETAG, HttpHeaders.EXPIRES, HttpHeaders.VARY, HttpHeaders.LAST_MODIFIED);
+    private static final String AGE = "Age";
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final long maxBytes;
+    private final Map<String, List<Entry>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Answers the GET from the cache when possible; otherwise calls <code>service</code>, with the headers to
+     * send, and stores the response if it can be cached.
+     */
+    public ServiceClient.ExchangeResponse get(String path, Json parameters, Json headers, Function<Json, ServiceClient.ExchangeResponse> service) {
+        final Map<String, String> requestDirectives = directives(header(headers, HttpHeaders.CACHE_CONTROL));
+        if (requestDirectives.containsKey("no-store")) {
+            misses.increment();
+            return service.apply(headers);
+        }
+        final String key = key(path, parameters);
+        final Entry entry = lookup(key, headers);
+        final boolean revalidate = requestDirectives.containsKey("no-cache") || "0".equals(requestDirectives.get("max-age"));
+        if (entry != null && !revalidate && entry.isFresh()) {
+            return fromCache(entry, headers);
+        }
+        if (entry != null && entry.hasValidator() && !isConditional(headers)) {
+            final Json conditional = Json.map();
+            headers.forEachMap(conditional::set);
+            conditional.setIfNotNull(HttpHeaders.IF_NONE_MATCH, entry.eTag);
+            if (entry.eTag == null) {
+                conditional.set(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+            }
+            final ServiceClient.ExchangeResponse response = service.apply(conditional);
+            if (response != null && response.status() == HttpStatus.SC_NOT_MODIFIED) {
+                revalidated.increment();
+                final Entry refreshed = entry.refresh(response.headers());
+                replace(key, entry, refreshed);
+                return fromCache(refreshed, headers);
+            }
+            misses.increment();
+            store(key, headers, response);
+            return response;
+        }
+        misses.increment();
+        final ServiceClient.ExchangeResponse response = service.apply(headers);
+        store(key, headers, response);
+        return response;
+    }
+
+    /** Drops the responses of a path after it was changed with an unsafe method */
+    public void invalidate(String path) {
+        final String prefix = path + '?';
+        synchronized (cache) {
+            cache.entrySet().removeIf(item -> {
+                final boolean remove = item.getKey().equals(path) || item.getKey().startsWith(prefix);
+                if (remove) {
+                    item.getValue().forEach(entry -> bytes -= entry.size);
+                    invalidations.increment();
+                }
+                return remove;
+            });
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    public Json stats() {
+        final int size;
+        final long usedBytes;
+        synchronized (cache) {
+            size = cache.values().stream().mapToInt(List::size).sum();
+            usedBytes = bytes;
+        }
+        final long served = hits.sum() + notModified.sum();
+        final long lookups = served + misses.sum();
+        return Json.map()
+                .set("entries", size)
+                .set("bytes", usedBytes)
+                .set("maxBytes", maxBytes)
+                .set("hits", hits.sum())
+                .set("notModified", notModified.sum())
+                .set("misses", misses.sum())
+                .set("hitRatio", lookups > 0 ? Math.round(served * 1000.0 / lookups) / 1000.0 : 0)
+                .set("revalidated", revalidated.sum())
+                .set("stored", stored.sum())
+                .set("evictions", evictions.sum())
+                .set("invalidations", invalidations.sum())
+                .set("bytesSaved", bytesSaved.sum());
+    }
+
+    private ServiceClient.ExchangeResponse fromCache(Entry entry, Json requestHeaders) {
+        final Map<String, String> headers = new LinkedHashMap<>(entry.headers);
+        headers.put(AGE, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(entry.age())));
+        bytesSaved.add(entry.bodyBytes);
+        if (entry.matches(header(requestHeaders, HttpHeaders.IF_NONE_MATCH), header(requestHeaders, HttpHeaders.IF_MODIFIED_SINCE))) {
+            notModified.increment();
+            headers.keySet().removeIf(name -> !NOT_MODIFIED_HEADERS.contains(name) && !AGE.equals(name));
+            return new ServiceClient.ExchangeResponse(HttpStatus.SC_NOT_MODIFIED, headers, null);
+        }
+        hits.increment();
+        return new ServiceClient.ExchangeResponse(entry.status, headers, entry.body());
+    }
+
+    private Entry lookup(String key, Json requestHeaders) {
+        synchronized (cache) {
+            final List<Entry> variants = cache.get(key);
+            if (variants == null) {
+                return null;
+            }
+            for (Entry entry : variants) {
+                if (entry.varies(requestHeaders)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void store(String key, Json requestHeaders, ServiceClient.ExchangeResponse response) {
+        if (response == null || !CACHEABLE_STATUSES.contains(response.status())) {
+            return;
+        }
+        final Map<String, String> directives = directives(header(response.headers(), HttpHeaders.CACHE_CONTROL));
+        final String vary = header(response.headers(), HttpHeaders.VARY);
+        if (directives.containsKey("no-store") || directives.containsKey("private") || (vary != null && vary.contains("*"))) {
+            return;
+        }
+        // responses to authenticated requests are shared only when the service says so
+        if (header(requestHeaders, HttpHeaders.AUTHORIZATION) != null && !directives.containsKey("public") && !directives.containsKey("s-maxage")) {
+            return;
+        }
+        final Entry entry = Entry.of(response, directives, vary, requestHeaders);
+        if (entry == null || entry.size > maxBytes) {
+            return;
+        }
+        synchronized (cache) {
+            final List<Entry> variants = cache.computeIfAbsent(key, k -> new ArrayList<>(1));
+            variants.removeIf(variant -> {
+                final boolean same = variant.varyValues.equals(entry.varyValues);
+                if (same) {
+                    bytes -= variant.size;
+                }
+                return same;
+            });
+            variants.add(entry);
+            bytes += entry.size;
+            stored.increment();
+            evict();
+        }
+    }
+
+    private void replace(String key, Entry previous, Entry entry) {
+        synchronized (cache) {
+            final List<Entry> variants = cache.get(key);
+            if (variants != null && variants.remove(previous)) {
+                variants.add(entry);
+                bytes += entry.size - previous.size;
+            }
+        }
+    }
+
+    /** Drops least recently used URLs, with all their variants, until the cache fits again */
+    private void evict() {
+        final Iterator<Map.Entry<String, List<Entry>>> iterator = cache.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            final List<Entry> variants = iterator.next().getValue();
+            variants.forEach(entry -> bytes -= entry.size);
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private static boolean isConditional(Json headers) {
+        return header(headers, HttpHeaders.IF_NONE_MATCH) != null || header(headers, HttpHeaders.IF_MODIFIED_SINCE) != null;
+    }
+
+    private static String key(String path, Json parameters) {
+        if (parameters == null || parameters.isEmpty()) {
+            return path;
+        }
+        final Map<String, String> sortedParameters = new TreeMap<>();
+        parameters.forEachMapString(sortedParameters::put);
+        return path + '?' + sortedParameters;
+    }
+
+    /** Directives of a <code>Cache-Control</code> header, lower case, with their values unquoted */
+    static Map<String, String> directives(String cacheControl) {
+        final Map<String, String> directives = new LinkedHashMap<>();
+        if (StringUtils.isBlank(cacheControl)) {
+            return directives;
+        }
+        for (String directive : cacheControl.split(",")) {
+            final int separator = directive.indexOf('=');
+            final String name = (separator >= 0 ? directive.substring(0, separator) : directive).trim().toLowerCase();
+            if (!name.isEmpty()) {
+                directives.put(name, separator >= 0 ? StringUtils.strip(directive.substring(separator + 1).trim(), "\"") : "");
+            }
+        }
+        return directives;
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String header(Json headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (String key : headers.keys()) {
+            if (name.equalsIgnoreCase(key)) {
+                return headers.string(key);
+            }
+        }
+        return null;
+    }
+
+    private static class Entry {
+        private final int status;
+        private final Map<String, String> headers;
+        private final Object body;
+        private final boolean jsonBody;
+        private final long bodyBytes;
+        private final long size;
+        private final String eTag;
+        private final String lastModified;
+        private final Map<String, String> varyValues;
+        private final long storedAt;
+        private final long ageAtStore;
+        private final long freshNanos;
+
+        private Entry(int status, Map<String, String> headers, Object body, long freshNanos, long ageAtStore, Map<String, String> varyValues) {
+            this.status = status;
+            this.headers = headers;
+            this.jsonBody = body instanceof Json;
+            // JSON bodies are kept serialized, so every hit gets its own copy
+            this.body = jsonBody ? body.toString() : body;
+            this.bodyBytes = this.body != null ? this.body.toString().getBytes(StandardCharsets.UTF_8).length : 0;
+            this.size = bodyBytes + ENTRY_OVERHEAD_BYTES + headers.entrySet().stream().mapToLong(header -> header.getKey().length() + header.getValue().length()).sum();
+            this.eTag = header(headers, HttpHeaders.ETAG);
+            this.lastModified = header(headers, HttpHeaders.LAST_MODIFIED);
+            this.varyValues = varyValues;
+            this.storedAt = System.nanoTime();
+            this.ageAtStore = ageAtStore;
+            this.freshNanos = freshNanos;
+        }
+
+        /** Entry for the response, or null when it has no explicit freshness and nothing to revalidate it */
+        static Entry of(ServiceClient.ExchangeResponse response, Map<String, String> directives, String vary, Json requestHeaders) {
+            final long freshNanos = freshness(response.headers(), directives);
+            final boolean validator = header(response.headers(), HttpHeaders.ETAG) != null || header(response.headers(), HttpHeaders.LAST_MODIFIED) != null;
+            if (freshNanos < 0 || (freshNanos == 0 && !validator)) {
+                return null;
+            }
+            final Map<String, String> varyValues = new TreeMap<>();
+            if (StringUtils.isNotBlank(vary)) {
+                for (String name : vary.split(",")) {
+                    if (StringUtils.isNotBlank(name)) {
+                        varyValues.put(name.trim().toLowerCase(), StringUtils.defaultString(header(requestHeaders, name.trim())));
+                    }
+                }
+            }
+            final Map<String, String> headers = new LinkedHashMap<>(response.headers());
+            // the age is recalculated on every hit
+            headers.keySet().removeIf(AGE::equalsIgnoreCase);
+            return new Entry(response.status(), headers, response.body(), freshNanos, age(response.headers()), varyValues);
+        }
+
+        /**
+         * Freshness lifetime from <code>s-maxage</code>, <code>max-age</code> or <code>Expires</code>; zero
+         * when the response must be revalidated and -1 when it has no explicit freshness.
+         */
+        private static long freshness(Map<String, String> headers, Map<String, String> directives) {
+            if (directives.containsKey("no-cache")) {
+                return 0;
+            }
+            for (String directive : new String[]{"s-maxage", "max-age"}) {
+                if (directives.containsKey(directive)) {
+                    try {
+                        return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(directives.get(directive))));
+                    } catch (NumberFormatException ex) {
+                        return 0;
+                    }
+                }
+            }
+            final String expires = header(headers, HttpHeaders.EXPIRES);
+            if (expires != null) {
+                final Date expiresAt = DateUtils.parseDate(expires);
+                final String dateHeader = header(headers, HttpHeaders.DATE);
+                final Date date = dateHeader != null ? DateUtils.parseDate(dateHeader) : null;
+                if (expiresAt == null) {
+                    // invalid dates mean already expired
+                    return 0;
+                }
+                final long now = date != null ? date.getTime() : System.currentTimeMillis();
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expiresAt.getTime() - now));
+            }
+            return -1;
+        }
+
+        private static long age(Map<String, String> headers) {
+            final String age = header(headers, AGE);
+            try {
+                return age != null ? TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(age.trim()))) : 0;
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+        /** Same response with the headers and freshness of a <code>304</code> from the service */
+        Entry refresh(Map<String, String> notModifiedHeaders) {
+            final Map<String, String> merged = new LinkedHashMap<>(headers);
+            notModifiedHeaders.forEach((name, value) -> {
+                if (NOT_MODIFIED_HEADERS.contains(name)) {
+                    merged.keySet().removeIf(name::equalsIgnoreCase);
+                    merged.put(name, value);
+                }
+            });
+            final long refreshedFreshness = freshness(merged, directives(header(merged, HttpHeaders.CACHE_CONTROL)));
+            return new Entry(status, merged, body(), Math.max(0, refreshedFreshness), age(notModifiedHeaders), varyValues);
+        }
+
+        boolean isFresh() {
+            return age() < freshNanos;
+        }
+
+        long age() {
+            return ageAtStore + System.nanoTime() - storedAt;
+        }
+
+        boolean hasValidator() {
+            return eTag != null || lastModified != null;
+        }
+
+        boolean varies(Json requestHeaders) {
+            for (Map.Entry<String, String> value : varyValues.entrySet()) {
+                if (!value.getValue().equals(StringUtils.defaultString(header(requestHeaders, value.getKey())))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Whether a conditional request of the caller can be answered with <code>304</code> */
+        boolean matches(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                if (eTag == null) {
+                    return false;
+                }
+                final String current = weak(eTag);
+                for (String candidate : ifNoneMatch.split(",")) {
+                    if ("*".equals(candidate.trim()) || weak(candidate.trim()).equals(current)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null && lastModified != null) {
+                final Date since = DateUtils.parseDate(ifModifiedSince);
+                final Date modified = DateUtils.parseDate(lastModified);
+                return since != null && modified != null && !modified.after(since);
+            }
+            return false;
+        }
+
+        Object body() {
+            return jsonBody ? Json.parse((String) body) : body;
+        }
+
+        /** Entity tags compared with the weak comparison, as required for <code>If-None-Match</code> */
+        private static String weak(String eTag) {
+            return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        }
+    }
+}
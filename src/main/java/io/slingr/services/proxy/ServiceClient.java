@@ -0,0 +1,672 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.services.rest.RestMethod;
+import io.slingr.services.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled HTTP client used for every exchange with the service in development.
+ * <p>
+ * One instance is created for the configured service URI when the proxy starts and it is closed when the
+ * proxy stops, so connections are kept alive and reused between function calls and webhooks. Every call
+ * goes through a {@link CircuitBreaker}, so calls fail right away while the service is down.
+ */
+public class ServiceClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceClient.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    static final int SOCKET_TIMEOUT_MS = 120000;
+    static final int MIN_SOCKET_TIMEOUT_MS = 5000;
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 5000;
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    /** Headers that change the response of a GET, so they are part of the key used to coalesce them */
+    private static final Set<String> COALESCING_HEADERS = Set.of("accept", "accept-language", "authorization", "cookie", Parameter.TOKEN.toLowerCase());
+    /** Headers of the response of the service that belong to its connection, so they are not copied to the webhook response */
+    private static final Set<String> HOP_BY_HOP_HEADERS = caseInsensitiveSet(HTTP.CONTENT_LEN, HTTP.TRANSFER_ENCODING, HTTP.CONN_DIRECTIVE, HTTP.TARGET_HOST);
+    /** Operation of the configuration requests in {@link AdaptiveTimeouts}; function calls have none, so they keep the maximum */
+    static final String CONFIGURATION_OPERATION = "configuration";
+
+    private final ServiceTargets targets;
+    private final String serviceToken;
+    private final int maxConnectionsPerRoute;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig requestConfig;
+    private final SingleFlight<ExchangeResponse> coalescedGets;
+    private final SingleFlight<VersionedJson> coalescedJsonGets;
+    private final Compression compression;
+    private volatile ServiceTunnel tunnel;
+    private ScheduledExecutorService healthChecks;
+
+    public ServiceClient(ServiceTargets targets, String serviceToken, int maxConnectionsPerRoute, int idleTimeoutSeconds, boolean coalesceRequests,
+                         Compression compression) {
+        this.targets = targets;
+        this.serviceToken = serviceToken;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.compression = compression;
+        this.coalescedGets = coalesceRequests ? new SingleFlight<>() : null;
+        this.coalescedJsonGets = coalesceRequests ? new SingleFlight<>() : null;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(idleTimeoutSeconds * 4L, TimeUnit.SECONDS);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        this.connectionManager.setMaxTotal(maxConnectionsPerRoute * (targets.all().size() + 1));
+        this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                .setConnectionRequestTimeout(CONNECT_TIMEOUT_MS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MS)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(this.requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+                .disableCookieManagement()
+                // encodings are handled by Compression, so streamed bodies can keep the encoding of the caller
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * Sends the requests whose bodies are read in full through the tunnel while the service is connected to it;
+     * streamed requests and requests sent while it is disconnected use HTTP.
+     */
+    public void useTunnel(ServiceTunnel tunnel) {
+        this.tunnel = tunnel;
+    }
+
+    /** Executes a GET to the service and returns the response body as json */
+    public Json getJson(String path) {
+        final VersionedJson tunneled = tunnelJson(RestMethod.GET, path, null, null, CONFIGURATION_OPERATION);
+        if (tunneled != null) {
+            return tunneled.json();
+        }
+        return executeJson(targets.primary(), RequestBuilder.get(url(targets.primary(), path)), path, CONFIGURATION_OPERATION);
+    }
+
+    /**
+     * Executes a conditional GET to the service. When the given entity tag still matches, the service can
+     * answer <code>304</code> and the returned response is flagged as not modified.
+     */
+    public VersionedJson getJsonIfNoneMatch(String path, String eTag) {
+        if (coalescedJsonGets != null) {
+            return coalescedJsonGets.execute(path + '\n' + eTag, () -> executeJsonIfNoneMatch(path, eTag));
+        }
+        return executeJsonIfNoneMatch(path, eTag);
+    }
+
+    private VersionedJson executeJsonIfNoneMatch(String path, String eTag) {
+        final VersionedJson tunneled = tunnelJson(RestMethod.GET, path, eTag, null, CONFIGURATION_OPERATION);
+        if (tunneled != null) {
+            return tunneled;
+        }
+        final RequestBuilder builder = RequestBuilder.get(url(targets.primary(), path));
+        if (StringUtils.isNotBlank(eTag)) {
+            builder.addHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        }
+        return executeVersionedJson(targets.primary(), builder, path, CONFIGURATION_OPERATION);
+    }
+
+    /** Executes a POST to the service with the given content and returns the response body as json */
+    public Json postJson(String path, Json content) {
+        final VersionedJson tunneled = tunnelJson(RestMethod.POST, path, null, content, null);
+        if (tunneled != null) {
+            return tunneled.json();
+        }
+        final ServiceTargets.Target target = targets.select(null);
+        final RequestBuilder builder = RequestBuilder.post(url(target, path));
+        if (content != null) {
+            builder.setEntity(compression.compress(new StringEntity(content.toString(), ContentType.APPLICATION_JSON)));
+        }
+        return executeJson(target, builder, path, null);
+    }
+
+    /**
+     * Forwards a generic request to the service and returns the answer with the same structure used by the
+     * rest client: <code>status</code>, <code>headers</code> and <code>body</code>
+     */
+    public ExchangeResponse exchange(RestMethod method, String path, Json headers, Json parameters, Object body) {
+        if (coalescedGets != null && (method == null || method == RestMethod.GET) && body == null) {
+            return coalescedGets.execute(coalescingKey(path, headers, parameters), () -> executeExchange(method, path, headers, parameters, null));
+        }
+        return executeExchange(method, path, headers, parameters, body);
+    }
+
+    private ExchangeResponse executeExchange(RestMethod method, String path, Json headers, Json parameters, Object body) {
+        final ServiceTunnel connectedTunnel = tunnel;
+        if (connectedTunnel != null && connectedTunnel.isConnected() && (body == null || body instanceof String || body instanceof Json || body instanceof byte[])) {
+            return connectedTunnel.exchange(method, path, headers, parameters, body);
+        }
+        final ServiceTargets.Target target = targets.select(targets.stickyKey(headers));
+        try {
+            final CloseableHttpResponse response = execute(target, exchangeRequest(target, method, path, headers, parameters, body, true), true, webhookOperation(method, path));
+            try {
+                final Header[] allHeaders = response.getAllHeaders();
+                final Map<String, String> responseHeaders = new LinkedHashMap<>(allHeaders.length * 2);
+                for (Header header : allHeaders) {
+                    if (!HOP_BY_HOP_HEADERS.contains(header.getName())) {
+                        responseHeaders.merge(header.getName(), header.getValue(), (current, value) -> current + ", " + value);
+                    }
+                }
+                return new ExchangeResponse(response.getStatusLine().getStatusCode(), responseHeaders, toBody(response.getEntity()));
+            } finally {
+                release(target, response);
+            }
+        } catch (Compression.TooLargeException ex) {
+            // the request of the caller was fine: it is the response of the service that can not be read
+            return new ExchangeResponse(HttpStatus.SC_BAD_GATEWAY, new LinkedHashMap<>(), ex.getMessage());
+        } catch (IOException ex) {
+            throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Exception when try to connect to Service [%s]: %s", path, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Forwards a generic request to the service without buffering the request or the response bodies.
+     * The connection goes back to the pool, and the request stops counting as outstanding for the target, when
+     * the body of the returned response is closed.
+     */
+    public StreamedResponse stream(RestMethod method, String path, Json headers, Json parameters, Object body) {
+        final ServiceTargets.Target target = targets.select(targets.stickyKey(headers));
+        final CloseableHttpResponse response;
+        try {
+            response = execute(target, exchangeRequest(target, method, path, headers, parameters, body, false), false, webhookOperation(method, path));
+        } catch (IOException ex) {
+            throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Exception when try to connect to Service [%s]: %s", path, ex.getMessage()), ex);
+        }
+        try {
+            final Json responseHeaders = Json.map();
+            for (Header header : response.getAllHeaders()) {
+                if (!HOP_BY_HOP_HEADERS.contains(header.getName())) {
+                    final String current = responseHeaders.string(header.getName());
+                    responseHeaders.set(header.getName(), current == null ? header.getValue() : current + ", " + header.getValue());
+                }
+            }
+            final HttpEntity entity = response.getEntity();
+            final InputStream content = entity != null ? new ResponseInputStream(target, response, entity.getContent()) : null;
+            if (content == null) {
+                release(target, response);
+            }
+            return new StreamedResponse(response.getStatusLine().getStatusCode(), responseHeaders, content);
+        } catch (IOException ex) {
+            release(target, response);
+            throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Exception when try to read response from Service [%s]: %s", path, ex.getMessage()), ex);
+        }
+    }
+
+    /** Counters of the coalesced GET requests, or null when coalescing is disabled */
+    public Json coalescingStats() {
+        if (coalescedGets == null) {
+            return null;
+        }
+        return Json.map()
+                .set("webhooks", coalescedGets.stats())
+                .set("configuration", coalescedJsonGets.stats());
+    }
+
+    /** Bytes and time spent compressing requests and decompressing responses */
+    public Json compressionStats() {
+        return compression.stats();
+    }
+
+    /** Current state of the connection pool */
+    public Json stats() {
+        final PoolStats stats = connectionManager.getTotalStats();
+        return Json.map()
+                .set("leased", stats.getLeased())
+                .set("idle", stats.getAvailable())
+                .set("pending", stats.getPending())
+                .set("max", stats.getMax())
+                .set("maxPerRoute", maxConnectionsPerRoute);
+    }
+
+    /** State of the circuit breaker and of the adaptive timeouts of the primary target */
+    public Json circuitBreakerStats() {
+        return targets.primary().circuitBreaker().stats()
+                .set("timeouts", targets.primary().adaptiveTimeouts().stats());
+    }
+
+    /** Load and health of each target, or null when there is only one */
+    public Json targetsStats() {
+        return targets.isBalanced() ? targets.stats() : null;
+    }
+
+    /**
+     * Sends a GET to <code>path</code> on every target every <code>intervalSeconds</code>. Targets that do not
+     * answer or answer with a server error are marked down until they pass the check again. Nothing is done
+     * when there is only one target, as there would be nowhere else to send the requests.
+     */
+    public void startHealthChecks(String path, int intervalSeconds) {
+        if (!targets.isBalanced() || healthChecks != null) {
+            return;
+        }
+        healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-health-checks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecks.scheduleWithFixedDelay(() -> targets.all().forEach(target -> target.checked(check(target, path))),
+                0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private boolean check(ServiceTargets.Target target, String path) {
+        final RequestBuilder builder = RequestBuilder.get(url(target, path))
+                .setConfig(RequestConfig.copy(requestConfig)
+                        .setConnectTimeout(HEALTH_CHECK_TIMEOUT_MS)
+                        .setSocketTimeout(HEALTH_CHECK_TIMEOUT_MS)
+                        .build());
+        if (serviceToken != null) {
+            builder.addHeader(Parameter.TOKEN, serviceToken);
+        }
+        try (CloseableHttpResponse response = httpClient.execute(builder.build())) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        } catch (IOException | RuntimeException ex) {
+            logger.debug(String.format("Health check of [%s] failed: %s", target.uri(), ex.getMessage()));
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (healthChecks != null) {
+            healthChecks.shutdownNow();
+        }
+        try {
+            httpClient.close();
+        } catch (IOException ex) {
+            logger.warn(String.format("Exception when try to close the Service client: %s", ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Executes the request through the circuit breaker, with a read timeout adapted to the latency observed
+     * on previous calls of the same <code>operation</code>. Connection problems, timeouts and gateway errors
+     * count as failures (see {@link CircuitBreaker#isFailure}). Responses that are going to be read in full (<code>decode</code>) are decompressed.
+     */
+    private CloseableHttpResponse execute(ServiceTargets.Target target, HttpUriRequest request, boolean decode, String operation) throws IOException {
+        CloseableHttpResponse response = executeThroughCircuitBreaker(target, request, operation);
+        compression.negotiate(response);
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && request instanceof HttpEntityEnclosingRequest
+                && ((HttpEntityEnclosingRequest) request).getEntity() instanceof Compression.CompressedEntity) {
+            // the service does not accept gzip bodies after all, so the request is sent again uncompressed
+            compression.rejected();
+            release(target, response);
+            final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+            entityRequest.setEntity(((Compression.CompressedEntity) entityRequest.getEntity()).original());
+            response = executeThroughCircuitBreaker(target, request, operation);
+        }
+        if (decode) {
+            try {
+                compression.decompress(response);
+            } catch (IOException | RuntimeException ex) {
+                release(target, response);
+                throw ex;
+            }
+        }
+        return response;
+    }
+
+    /** The call stays outstanding for the target until the response is given to {@link #release} */
+    private CloseableHttpResponse executeThroughCircuitBreaker(ServiceTargets.Target target, HttpUriRequest request, String operation) throws IOException {
+        final CircuitBreaker circuitBreaker = target.circuitBreaker();
+        circuitBreaker.acquirePermission();
+        if (request instanceof HttpRequestBase) {
+            ((HttpRequestBase) request).setConfig(RequestConfig.copy(requestConfig)
+                    .setSocketTimeout(target.adaptiveTimeouts().timeoutMillis(operation))
+                    .build());
+        }
+        final long start = System.nanoTime();
+        final CloseableHttpResponse response;
+        target.begin();
+        try {
+            response = httpClient.execute(request);
+        } catch (IOException | RuntimeException ex) {
+            target.end();
+            final long elapsed = System.nanoTime() - start;
+            circuitBreaker.onResult(true, elapsed);
+            if (ex instanceof SocketTimeoutException) {
+                // calls that timed out are samples too, otherwise the timeout could never grow again
+                target.adaptiveTimeouts().record(operation, elapsed);
+            }
+            throw ex;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final boolean failure = CircuitBreaker.isFailure(response.getStatusLine().getStatusCode());
+        circuitBreaker.onResult(failure, elapsed);
+        if (!failure) {
+            target.adaptiveTimeouts().record(operation, elapsed);
+        }
+        return response;
+    }
+
+    /**
+     * Request of a webhook. When the response is <code>buffered</code> the proxy reads it, so the encodings
+     * accepted by the caller are replaced by the ones the proxy decodes; otherwise they are kept.
+     */
+    private HttpUriRequest exchangeRequest(ServiceTargets.Target target, RestMethod method, String path, Json headers, Json parameters, Object body, boolean buffered) {
+        final RequestBuilder builder = RequestBuilder.create(method != null ? method.name() : RestMethod.GET.name())
+                .setUri(url(target, path));
+        if (headers != null) {
+            headers.forEachMapString((key, value) -> {
+                if (!HTTP.TRANSFER_ENCODING.equalsIgnoreCase(key) && !HTTP.CONN_DIRECTIVE.equalsIgnoreCase(key)
+                        && !(buffered && HttpHeaders.ACCEPT_ENCODING.equalsIgnoreCase(key))) {
+                    builder.addHeader(key, value);
+                }
+            });
+        }
+        if (buffered && compression.isEnabled()) {
+            builder.addHeader(HttpHeaders.ACCEPT_ENCODING, Compression.GZIP);
+        }
+        if (parameters != null) {
+            parameters.forEachMapString(builder::addParameter);
+        }
+        final HttpEntity entity = toEntity(body);
+        if (entity != null) {
+            builder.setEntity(buffered ? compression.compress(entity) : entity);
+        }
+        return builder.build();
+    }
+
+    private Json executeJson(ServiceTargets.Target target, RequestBuilder builder, String path, String operation) {
+        return executeVersionedJson(target, builder, path, operation).json();
+    }
+
+    private VersionedJson executeVersionedJson(ServiceTargets.Target target, RequestBuilder builder, String path, String operation) {
+        if (serviceToken != null) {
+            builder.addHeader(Parameter.TOKEN, serviceToken);
+        }
+        if (compression.isEnabled()) {
+            builder.addHeader(HttpHeaders.ACCEPT_ENCODING, Compression.GZIP);
+        }
+        final HttpUriRequest request = builder.build();
+        try {
+            final CloseableHttpResponse response = execute(target, request, true, operation);
+            try {
+                final int status = response.getStatusLine().getStatusCode();
+                final Header eTag = response.getFirstHeader(HttpHeaders.ETAG);
+                if (status == HttpStatus.SC_NOT_MODIFIED) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return new VersionedJson(null, eTag != null ? eTag.getValue() : null, true);
+                }
+                final String content = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+                if (status >= 400) {
+                    throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Service responded [%s] on [%s]: %s", status, path, content));
+                }
+                return new VersionedJson(StringUtils.isNotBlank(content) ? Json.parse(content) : Json.map(), eTag != null ? eTag.getValue() : null, false);
+            } finally {
+                release(target, response);
+            }
+        } catch (IOException ex) {
+            throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Exception when try to connect to Service [%s]: %s", path, ex.getMessage()), ex);
+        }
+    }
+
+    /** Same as {@link #executeVersionedJson} through the tunnel, or null when the service is not connected to it */
+    private VersionedJson tunnelJson(RestMethod method, String path, String eTag, Json content, String operation) {
+        final ServiceTunnel current = tunnel;
+        if (current == null || !current.isConnected()) {
+            return null;
+        }
+        final Json headers = Json.map()
+                .setIfNotNull(Parameter.TOKEN, serviceToken)
+                .setIfNotNull(HttpHeaders.IF_NONE_MATCH, StringUtils.isNotBlank(eTag) ? eTag : null);
+        final ExchangeResponse response = current.exchange(method, path, headers, null, content, operation);
+        final String responseETag = response.headers().entrySet().stream()
+                .filter(header -> HttpHeaders.ETAG.equalsIgnoreCase(header.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst().orElse(null);
+        if (response.status() == HttpStatus.SC_NOT_MODIFIED) {
+            return new VersionedJson(null, responseETag, true);
+        }
+        if (response.status() >= 400) {
+            throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Service responded [%s] on [%s]: %s", response.status(), path, response.body()));
+        }
+        final Object body = response.body();
+        final Json json = body instanceof Json ? (Json) body
+                : body != null && StringUtils.isNotBlank(body.toString()) ? Json.parse(body.toString()) : Json.map();
+        return new VersionedJson(json, responseETag, false);
+    }
+
+    /** Webhooks are timed by method and path, as each path of the service can take a different time */
+    static String webhookOperation(RestMethod method, String path) {
+        return (method != null ? method.name() : RestMethod.GET.name()) + " " + (StringUtils.isBlank(path) ? "/" : path);
+    }
+
+    private static String coalescingKey(String path, Json headers, Json parameters) {
+        final StringBuilder key = new StringBuilder(path);
+        if (parameters != null) {
+            final Map<String, String> sortedParameters = new TreeMap<>();
+            parameters.forEachMapString(sortedParameters::put);
+            key.append('?').append(sortedParameters);
+        }
+        if (headers != null) {
+            final Map<String, String> relevantHeaders = new TreeMap<>();
+            headers.forEachMapString((name, value) -> {
+                if (COALESCING_HEADERS.contains(name.toLowerCase())) {
+                    relevantHeaders.put(name.toLowerCase(), value);
+                }
+            });
+            key.append('\n').append(relevantHeaders);
+        }
+        return key.toString();
+    }
+
+    private static String url(ServiceTargets.Target target, String path) {
+        if (StringUtils.isBlank(path)) {
+            return target.uri() + "/";
+        }
+        return path.startsWith("/") ? target.uri() + path : target.uri() + "/" + path;
+    }
+
+    private static HttpEntity toEntity(Object body) {
+        if (body == null) {
+            return null;
+        }
+        if (body instanceof InputStream) {
+            return new InputStreamEntity(new BufferedInputStream((InputStream) body, STREAM_BUFFER_SIZE));
+        }
+        if (body instanceof byte[]) {
+            return new ByteArrayEntity((byte[]) body);
+        }
+        if (body instanceof String) {
+            return new StringEntity((String) body, StandardCharsets.UTF_8);
+        }
+        if (body instanceof Json) {
+            return new StringEntity(body.toString(), StandardCharsets.UTF_8);
+        }
+        if (body instanceof Map || body instanceof List) {
+            final Json json = Json.fromObject(body, false, true);
+            return new StringEntity(json != null ? json.toString() : body.toString(), StandardCharsets.UTF_8);
+        }
+        return new StringEntity(body.toString(), StandardCharsets.UTF_8);
+    }
+
+    /** JSON bodies are parsed once into the {@link Json} that is returned to the caller of the webhook */
+    private static Object toBody(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return null;
+        }
+        final String content = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+        final ContentType contentType = ContentType.get(entity);
+        if (contentType != null && ContentType.APPLICATION_JSON.getMimeType().equalsIgnoreCase(contentType.getMimeType()) && StringUtils.isNotBlank(content)) {
+            try {
+                return Json.parse(content);
+            } catch (Exception ex) {
+                logger.warn(String.format("Invalid json body received from Service: %s", ex.getMessage()));
+            }
+        }
+        return content;
+    }
+
+    static Set<String> caseInsensitiveSet(String... values) {
+        final Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(Arrays.asList(values));
+        return Collections.unmodifiableSet(set);
+    }
+
+    /** Closes the response and stops counting its request as outstanding for the target */
+    private static void release(ServiceTargets.Target target, CloseableHttpResponse response) {
+        closeQuietly(response);
+        target.end();
+    }
+
+    private static void closeQuietly(CloseableHttpResponse response) {
+        try {
+            response.close();
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to close response from Service: %s", ex.getMessage()));
+        }
+    }
+
+    /**
+     * Response of the service read in full. The body is a {@link Json} when the service answers JSON and a
+     * string otherwise; connection headers are already removed.
+     */
+    public static class ExchangeResponse {
+        private final int status;
+        private final Map<String, String> headers;
+        private final Object body;
+
+        ExchangeResponse(int status, Map<String, String> headers, Object body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        public Map<String, String> headers() {
+            return headers;
+        }
+
+        public Object body() {
+            return body;
+        }
+    }
+
+    /** Response of the service whose body has not been read yet */
+    public static class StreamedResponse {
+        private final int status;
+        private final Json headers;
+        private final InputStream body;
+
+        StreamedResponse(int status, Json headers, InputStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        public Json headers() {
+            return headers;
+        }
+
+        public InputStream body() {
+            return body;
+        }
+    }
+
+    /** Json response of the service together with its entity tag */
+    public static class VersionedJson {
+        private final Json json;
+        private final String eTag;
+        private final boolean notModified;
+
+        VersionedJson(Json json, String eTag, boolean notModified) {
+            this.json = json;
+            this.eTag = eTag;
+            this.notModified = notModified;
+        }
+
+        public Json json() {
+            return json;
+        }
+
+        public String eTag() {
+            return eTag;
+        }
+
+        public boolean notModified() {
+            return notModified;
+        }
+    }
+
+    /** Releases the pooled connection and the outstanding request of the target when the body is closed */
+    private static class ResponseInputStream extends FilterInputStream {
+        private final ServiceTargets.Target target;
+        private final CloseableHttpResponse response;
+        private boolean closed = false;
+
+        ResponseInputStream(ServiceTargets.Target target, CloseableHttpResponse response, InputStream content) {
+            super(new BufferedInputStream(content, STREAM_BUFFER_SIZE));
+            this.target = target;
+            this.response = response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(target, response);
+            }
+        }
+    }
+}
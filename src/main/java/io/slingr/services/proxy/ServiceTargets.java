@@ -0,0 +1,312 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Instances of the service in development the proxy balances requests between.
+ * <p>
+ * The first target is the primary: configuration is always fetched from it. Each target has its own circuit
+ * breaker and adaptive timeouts, which act as the passive health check, and can be marked down by the active
+ * health check. Targets that are down or whose circuit is open are skipped until the circuit lets trial calls
+ * through or a health check succeeds; when all of them are skipped, the primary is used so callers get the
+ * error of its circuit breaker.
+ */
+public class ServiceTargets {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceTargets.class);
+
+    public enum Strategy {
+        LEAST_OUTSTANDING("leastOutstanding"),
+        ROUND_ROBIN("roundRobin"),
+        CONSISTENT_HASH("consistentHash");
+
+        private final String key;
+
+        Strategy(String key) {
+            this.key = key;
+        }
+
+        public static Strategy fromKey(String key) {
+            if (StringUtils.isBlank(key)) {
+                return LEAST_OUTSTANDING;
+            }
+            for (Strategy strategy : values()) {
+                if (strategy.key.equalsIgnoreCase(key.trim())) {
+                    return strategy;
+                }
+            }
+            logger.warn(String.format("Invalid load balancing strategy [%s], using [%s]", key, LEAST_OUTSTANDING.key));
+            return LEAST_OUTSTANDING;
+        }
+    }
+
+    static final int UNHEALTHY_THRESHOLD = 2;
+    static final int HEALTHY_THRESHOLD = 2;
+    private static final int VIRTUAL_NODES_PER_WEIGHT = 100;
+    private static final String WEIGHT_PARAMETER = ";weight=";
+
+    private final List<Target> targets;
+    private final Strategy strategy;
+    private final String stickyHeader;
+    private final NavigableMap<Long, Target> ring = new TreeMap<>();
+
+    /**
+     * @param uris         comma separated URIs besides the primary; each one can end with <code>;weight=N</code>
+     *                     (<code>1</code> by default)
+     * @param stickyHeader header whose value is hashed to pick the target with {@link Strategy#CONSISTENT_HASH}
+     */
+    public ServiceTargets(String primaryUri, String uris, Strategy strategy, String stickyHeader) {
+        final List<Target> parsed = new ArrayList<>();
+        parsed.add(new Target(primaryUri, 1));
+        if (StringUtils.isNotBlank(uris)) {
+            for (String item : uris.split(",")) {
+                if (StringUtils.isBlank(item)) {
+                    continue;
+                }
+                String uri = item.trim();
+                int weight = 1;
+                final int weightIndex = uri.toLowerCase().indexOf(WEIGHT_PARAMETER);
+                if (weightIndex >= 0) {
+                    try {
+                        weight = Math.max(1, Integer.parseInt(uri.substring(weightIndex + WEIGHT_PARAMETER.length()).trim()));
+                    } catch (NumberFormatException ex) {
+                        logger.warn(String.format("Invalid weight in service URI [%s], using 1", item.trim()));
+                    }
+                    uri = uri.substring(0, weightIndex).trim();
+                }
+                final String normalized = normalize(uri);
+                if (parsed.stream().noneMatch(target -> target.uri.equals(normalized))) {
+                    parsed.add(new Target(uri, weight));
+                }
+            }
+        }
+        this.targets = Collections.unmodifiableList(parsed);
+        this.strategy = strategy;
+        this.stickyHeader = StringUtils.trimToNull(stickyHeader);
+        for (Target target : targets) {
+            for (int i = 0; i < target.weight * VIRTUAL_NODES_PER_WEIGHT; i++) {
+                ring.put(hash(target.uri + "#" + i), target);
+            }
+        }
+    }
+
+    public Target primary() {
+        return targets.get(0);
+    }
+
+    public List<Target> all() {
+        return targets;
+    }
+
+    public boolean isBalanced() {
+        return targets.size() > 1;
+    }
+
+    /**
+     * Target for the next request. With consistent hashing, requests with the same <code>key</code> go to the
+     * same target while it is available; requests without key are sent to the least loaded one.
+     */
+    public Target select(String key) {
+        if (targets.size() == 1) {
+            return primary();
+        }
+        final Target selected;
+        if (strategy == Strategy.CONSISTENT_HASH && key != null) {
+            selected = onRing(key);
+        } else if (strategy == Strategy.ROUND_ROBIN) {
+            selected = roundRobin();
+        } else {
+            selected = leastOutstanding();
+        }
+        return selected != null ? selected : primary();
+    }
+
+    public Strategy strategy() {
+        return strategy;
+    }
+
+    /** Value of the sticky header in the given request headers, or null when it is not configured or missing */
+    public String stickyKey(Json headers) {
+        if (strategy != Strategy.CONSISTENT_HASH || stickyHeader == null || headers == null) {
+            return null;
+        }
+        for (String name : headers.keys()) {
+            if (stickyHeader.equalsIgnoreCase(name)) {
+                return headers.string(name);
+            }
+        }
+        return null;
+    }
+
+    public Json stats() {
+        final Json stats = Json.list();
+        targets.forEach(target -> stats.add(target.stats()));
+        return Json.map()
+                .set("strategy", strategy.key)
+                .setIfNotNull("stickyHeader", stickyHeader)
+                .set("targets", stats);
+    }
+
+    /** Lowest outstanding requests relative to the weight; the scan starts at a random target to spread ties */
+    private Target leastOutstanding() {
+        final int offset = ThreadLocalRandom.current().nextInt(targets.size());
+        Target selected = null;
+        double selectedLoad = Double.MAX_VALUE;
+        for (int i = 0; i < targets.size(); i++) {
+            final Target target = targets.get((offset + i) % targets.size());
+            if (!target.isAvailable()) {
+                continue;
+            }
+            final double load = (double) target.outstanding.get() / target.weight;
+            if (load < selectedLoad) {
+                selected = target;
+                selectedLoad = load;
+            }
+        }
+        return selected;
+    }
+
+    /** Smooth weighted round robin: each target is picked in proportion to its weight, interleaved */
+    private synchronized Target roundRobin() {
+        Target selected = null;
+        int totalWeight = 0;
+        for (Target target : targets) {
+            if (!target.isAvailable()) {
+                continue;
+            }
+            target.currentWeight += target.weight;
+            totalWeight += target.weight;
+            if (selected == null || target.currentWeight > selected.currentWeight) {
+                selected = target;
+            }
+        }
+        if (selected != null) {
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+    /** First available target clockwise from the hash of the key */
+    private Target onRing(String key) {
+        final long hash = hash(key);
+        final Target found = firstMatching(ring.tailMap(hash, true), Target::isAvailable);
+        return found != null ? found : firstMatching(ring.headMap(hash, false), Target::isAvailable);
+    }
+
+    private static Target firstMatching(Map<Long, Target> nodes, Predicate<Target> predicate) {
+        for (Target target : nodes.values()) {
+            if (predicate.test(target)) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    /** 64-bit FNV-1a followed by a final mix, so close keys land far apart on the ring */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static String normalize(String uri) {
+        return StringUtils.removeEnd(uri.trim(), "/");
+    }
+
+    /** One instance of the service */
+    public static class Target {
+        private final String uri;
+        private final int weight;
+        private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        private final AdaptiveTimeouts adaptiveTimeouts;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private volatile boolean healthy = true;
+        private int consecutiveChecks = 0;
+        private int currentWeight = 0;
+
+        Target(String uri, int weight) {
+            this.uri = normalize(uri);
+            this.weight = weight;
+            this.adaptiveTimeouts = new AdaptiveTimeouts(ServiceClient.MIN_SOCKET_TIMEOUT_MS, ServiceClient.SOCKET_TIMEOUT_MS);
+        }
+
+        public String uri() {
+            return uri;
+        }
+
+        CircuitBreaker circuitBreaker() {
+            return circuitBreaker;
+        }
+
+        AdaptiveTimeouts adaptiveTimeouts() {
+            return adaptiveTimeouts;
+        }
+
+        boolean isAvailable() {
+            return healthy && circuitBreaker.isCallPermitted();
+        }
+
+        void begin() {
+            outstanding.incrementAndGet();
+            requests.increment();
+        }
+
+        /** Called when the response is closed, so requests whose body is still being read count as outstanding */
+        void end() {
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * Records the result of an active health check. A target goes down after {@link #UNHEALTHY_THRESHOLD}
+         * failed checks in a row and back up after {@link #HEALTHY_THRESHOLD} successful ones. A successful check
+         * also closes an open or half-open circuit breaker, as the target answers again; a closed one keeps its
+         * window, so a target whose real traffic fails is still ejected.
+         */
+        synchronized void checked(boolean success) {
+            if (success && circuitBreaker.state() != CircuitBreaker.State.CLOSED) {
+                circuitBreaker.reset();
+            }
+            if (success == healthy) {
+                consecutiveChecks = 0;
+                return;
+            }
+            if (++consecutiveChecks >= (healthy ? UNHEALTHY_THRESHOLD : HEALTHY_THRESHOLD)) {
+                healthy = success;
+                consecutiveChecks = 0;
+                logger.info(String.format("Service target [%s] is %s", uri, healthy ? "healthy again" : "unhealthy, no requests are sent to it"));
+            }
+        }
+
+        Json stats() {
+            return Json.map()
+                    .set("uri", uri)
+                    .set("weight", weight)
+                    .set("healthy", healthy)
+                    .set("available", isAvailable())
+                    .set("outstanding", outstanding.get())
+                    .set("requests", requests.sum())
+                    .set("circuitBreaker", circuitBreaker.stats().set("timeouts", adaptiveTimeouts.stats()));
+        }
+    }
+}
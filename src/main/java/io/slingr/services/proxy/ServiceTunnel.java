@@ -0,0 +1,740 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.services.rest.RestMethod;
+import io.slingr.services.utils.Json;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent connection opened by the service to the proxy, over which every exchange flows as framed
+ * messages instead of one HTTP request each. The service connects outbound, so it does not need a public URL.
+ * <p>
+ * Each frame is <code>[length:int32][type:int8][stream:int32][payload]</code>, where the length counts the
+ * type, the stream id and the payload. Streams started by the proxy use odd ids and streams started by the
+ * service use even ids. Frame types:
+ * <ul>
+ *     <li><code>HELLO</code>: first frame of the service, with <code>{"token", "maxConcurrentStreams"}</code>; the
+ *     proxy answers with its own <code>HELLO</code> with <code>{"maxConcurrentStreams"}</code></li>
+ *     <li><code>REQUEST</code>: <code>{"method", "path", "headers", "parameters", "body"}</code></li>
+ *     <li><code>RESPONSE</code>: <code>{"status", "headers", "body"}</code> for the stream of the request</li>
+ *     <li><code>PING</code> and <code>PONG</code>: heartbeats; the connection is closed when nothing is received
+ *     for three heartbeat periods</li>
+ * </ul>
+ * JSON and text bodies are sent in <code>body</code>; any other content, like files or multipart forms, is sent
+ * in base64 in <code>bodyBase64</code> instead, with its type in the <code>Content-Type</code> header. Frames are
+ * at most 16 MB: a request that does not fit is answered with <code>413</code> and a response that does not fit
+ * is replaced by a <code>502</code>, so the connection stays open.
+ * <p>
+ * Requests of the proxy go through a circuit breaker and adaptive timeouts of their own, as the ones of each
+ * HTTP target do. There is no balancing: the tunnel reaches the one instance of the service connected to it.
+ * <p>
+ * Each side opens at most the number of concurrent streams advertised by the other one. Requests of the
+ * service are handled by replaying them on the web server of the proxy over loopback, so they go through the
+ * same endpoints, token checks and metrics as requests sent over HTTP.
+ * <p>
+ * The port is meant to be reached over the internet, so it is served with TLS when a key store is configured;
+ * otherwise it has to sit behind a TLS terminator. Until a connection sends a valid <code>HELLO</code>, which can
+ * be at most {@link #MAX_HELLO_SIZE} bytes, it is handled by a small pool of {@link #MAX_HANDSHAKES} threads and
+ * connections beyond that are closed right away.
+ */
+public class ServiceTunnel implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceTunnel.class);
+
+    static final byte HELLO = 1;
+    static final byte REQUEST = 2;
+    static final byte RESPONSE = 3;
+    static final byte PING = 4;
+    static final byte PONG = 5;
+
+    public static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    static final int MAX_HELLO_SIZE = 4 * 1024;
+    static final int MAX_HANDSHAKES = 4;
+    /** Base64 takes 4 bytes for every 3, and the status and headers need some room too */
+    private static final int MAX_BODY_SIZE = MAX_FRAME_SIZE / 4 * 3 - 64 * 1024;
+    private static final String BODY = "body";
+    private static final String BODY_BASE64 = "bodyBase64";
+    /** Headers of the request of the service that belong to its own connection, not to the replayed one */
+    private static final Set<String> CONNECTION_HEADERS = ServiceClient.caseInsensitiveSet(HTTP.CONTENT_LEN, HTTP.TRANSFER_ENCODING, HTTP.CONN_DIRECTIVE, HTTP.TARGET_HOST);
+    private static final long HEARTBEAT_MILLIS = 15000;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final long STREAM_WAIT_MILLIS = 10000;
+    private static final long RESPONSE_TIMEOUT_MILLIS = 120000;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final String serviceToken;
+    private final String localUri;
+    private final SSLContext sslContext;
+    private final CloseableHttpClient loopbackClient;
+    private final ThreadPoolExecutor handshakeExecutor;
+    private final ThreadPoolExecutor requestExecutor;
+    private final ScheduledExecutorService heartbeats;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile Connection connection;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final AdaptiveTimeouts adaptiveTimeouts = new AdaptiveTimeouts(ServiceClient.MIN_SOCKET_TIMEOUT_MS, (int) RESPONSE_TIMEOUT_MILLIS);
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder requestsSent = new LongAdder();
+    private final LongAdder requestsReceived = new LongAdder();
+    private final LongAdder requestsRejected = new LongAdder();
+    private final LongAdder framesTooLarge = new LongAdder();
+    private final LongAdder handshakesRejected = new LongAdder();
+
+    /**
+     * @param port          port where the service connects
+     * @param serviceToken  token the service has to send in its <code>HELLO</code>
+     * @param localUri      base URI of the web server of the proxy, used to handle requests of the service
+     */
+    public ServiceTunnel(int port, String serviceToken, String localUri) {
+        this(port, serviceToken, localUri, null);
+    }
+
+    /** @param sslContext context used to serve the port with TLS, or null for plain TCP */
+    public ServiceTunnel(int port, String serviceToken, String localUri, SSLContext sslContext) {
+        this.port = port;
+        this.serviceToken = serviceToken;
+        this.localUri = localUri;
+        this.sslContext = sslContext;
+        this.loopbackClient = HttpClients.custom()
+                .setMaxConnPerRoute(MAX_CONCURRENT_STREAMS)
+                .setMaxConnTotal(MAX_CONCURRENT_STREAMS)
+                .setDefaultRequestConfig(RequestConfig.custom().setSocketTimeout((int) RESPONSE_TIMEOUT_MILLIS).build())
+                .disableCookieManagement()
+                .build();
+        final AtomicInteger handshakeThreads = new AtomicInteger();
+        this.handshakeExecutor = new ThreadPoolExecutor(MAX_HANDSHAKES, MAX_HANDSHAKES, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> daemon(runnable, "proxy-tunnel-handshake-" + handshakeThreads.incrementAndGet()));
+        this.handshakeExecutor.allowCoreThreadTimeOut(true);
+        final AtomicInteger threads = new AtomicInteger();
+        this.requestExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_CONCURRENT_STREAMS), runnable -> daemon(runnable, "proxy-tunnel-request-" + threads.incrementAndGet()));
+        this.requestExecutor.allowCoreThreadTimeOut(true);
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "proxy-tunnel-heartbeat"));
+    }
+
+    /** Context to serve the tunnel with TLS, with the key and certificate of the PKCS12 key store */
+    public static SSLContext tlsContext(String keyStorePath, String keyStorePassword) throws IOException, GeneralSecurityException {
+        final char[] password = keyStorePassword != null ? keyStorePassword.toCharArray() : new char[0];
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = new FileInputStream(keyStorePath)) {
+            keyStore.load(is, password);
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    public void start() throws IOException {
+        serverSocket = sslContext != null ? sslContext.getServerSocketFactory().createServerSocket() : new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        acceptor = daemon(this::acceptConnections, "proxy-tunnel-acceptor");
+        acceptor.start();
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        if (sslContext != null) {
+            logger.info(String.format("Tunnel listening with TLS on port [%s]", port));
+        } else {
+            logger.warn(String.format("Tunnel listening on port [%s] without TLS: it has to be reached through a TLS terminator", port));
+        }
+    }
+
+    public boolean isConnected() {
+        final Connection current = connection;
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * Sends a request to the service through the tunnel and waits for its response.
+     *
+     * @param body a {@link Json}, a string, bytes or <code>null</code>
+     * @return the response of the service, or a <code>413</code> when the request does not fit in a frame
+     */
+    public ServiceClient.ExchangeResponse exchange(RestMethod method, String path, Json headers, Json parameters, Object body) {
+        return exchange(method, path, headers, parameters, body, ServiceClient.webhookOperation(method, path));
+    }
+
+    /** Same as {@link #exchange(RestMethod, String, Json, Json, Object)}, timed as the given operation of {@link AdaptiveTimeouts} */
+    ServiceClient.ExchangeResponse exchange(RestMethod method, String path, Json headers, Json parameters, Object body, String operation) {
+        final Connection current = connection;
+        if (current == null || !current.isOpen()) {
+            throw ServiceException.retryable(ErrorCode.CLIENT, "Service is not connected to the tunnel");
+        }
+        final Json request = Json.map()
+                .set("method", method != null ? method.name() : RestMethod.GET.name())
+                .set("path", path)
+                .setIfNotNull("headers", headers)
+                .setIfNotNull("parameters", parameters);
+        if (body instanceof byte[]) {
+            request.set(BODY_BASE64, Base64.encodeBase64String((byte[]) body));
+        } else {
+            request.setIfNotNull(BODY, body);
+        }
+        final byte[] payload = request.toString().getBytes(StandardCharsets.UTF_8);
+        if (!fits(payload)) {
+            framesTooLarge.increment();
+            return new ServiceClient.ExchangeResponse(HttpStatus.SC_REQUEST_TOO_LONG, new LinkedHashMap<>(),
+                    String.format("Request to [%s] is too large for the tunnel", path));
+        }
+        requestsSent.increment();
+        final Json response = requestThroughCircuitBreaker(current, payload, path, operation);
+        final Json responseHeaders = response.json("headers");
+        final Map<String, String> headersMap = new LinkedHashMap<>();
+        if (responseHeaders != null) {
+            responseHeaders.forEachMapString(headersMap::put);
+        }
+        return new ServiceClient.ExchangeResponse(response.integer("status", HttpStatus.SC_OK), headersMap, responseBody(response, headersMap));
+    }
+
+    /** Gateway errors and requests that got no response count as failures, as they do over HTTP */
+    private Json requestThroughCircuitBreaker(Connection current, byte[] payload, String path, String operation) {
+        circuitBreaker.acquirePermission();
+        final long timeoutMillis = adaptiveTimeouts.timeoutMillis(operation);
+        final long start = System.nanoTime();
+        final Json response;
+        try {
+            response = current.request(payload, path, timeoutMillis);
+        } catch (RuntimeException ex) {
+            final long elapsed = System.nanoTime() - start;
+            circuitBreaker.onResult(true, elapsed);
+            if (elapsed >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                // calls that timed out are samples too, otherwise the timeout could never grow again
+                adaptiveTimeouts.record(operation, elapsed);
+            }
+            throw ex;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final boolean failure = CircuitBreaker.isFailure(response.integer("status", HttpStatus.SC_OK));
+        circuitBreaker.onResult(failure, elapsed);
+        if (!failure) {
+            adaptiveTimeouts.record(operation, elapsed);
+        }
+        return response;
+    }
+
+    /**
+     * Body of a response of the service. Content sent in base64 is decoded as text, the same way the bodies of
+     * responses received over HTTP are read.
+     */
+    private static Object responseBody(Json response, Map<String, String> headers) {
+        final String encoded = response.string(BODY_BASE64);
+        if (encoded == null) {
+            return toBody(response.object(BODY));
+        }
+        Charset charset = StandardCharsets.UTF_8;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(header.getKey())) {
+                final ContentType contentType = ContentType.parse(header.getValue());
+                if (contentType.getCharset() != null) {
+                    charset = contentType.getCharset();
+                }
+            }
+        }
+        return new String(Base64.decodeBase64(encoded), charset);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object toBody(Object body) {
+        if (body instanceof Map) {
+            return Json.fromMap((Map<String, ?>) body);
+        }
+        if (body instanceof List) {
+            return Json.fromList((List<?>) body);
+        }
+        return body;
+    }
+
+    @Override
+    public void close() {
+        heartbeats.shutdownNow();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to close tunnel socket: %s", ex.getMessage()));
+        }
+        final Connection current = connection;
+        if (current != null) {
+            current.close("proxy stopped");
+        }
+        handshakeExecutor.shutdownNow();
+        requestExecutor.shutdownNow();
+        try {
+            loopbackClient.close();
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to close tunnel client: %s", ex.getMessage()));
+        }
+    }
+
+    public Json stats() {
+        final Connection current = connection;
+        return Json.map()
+                .set("port", port)
+                .set("tls", sslContext != null)
+                .set("connected", current != null && current.isOpen())
+                .set("connections", connections.sum())
+                .set("activeStreams", current != null ? current.pending.size() : 0)
+                .set("framesSent", framesSent.sum())
+                .set("framesReceived", framesReceived.sum())
+                .set("bytesSent", bytesSent.sum())
+                .set("bytesReceived", bytesReceived.sum())
+                .set("requestsSent", requestsSent.sum())
+                .set("requestsReceived", requestsReceived.sum())
+                .set("requestsRejected", requestsRejected.sum())
+                .set("framesTooLarge", framesTooLarge.sum())
+                .set("handshakesRejected", handshakesRejected.sum())
+                .set("circuitBreaker", circuitBreaker.stats().set("timeouts", adaptiveTimeouts.stats()));
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                try {
+                    handshakeExecutor.execute(() -> open(socket));
+                } catch (RejectedExecutionException ex) {
+                    handshakesRejected.increment();
+                    logger.warn(String.format("Tunnel connection from [%s] rejected: too many pending handshakes", socket.getRemoteSocketAddress()));
+                    closeQuietly(socket);
+                }
+            } catch (SocketException ex) {
+                if (!serverSocket.isClosed()) {
+                    logger.warn(String.format("Exception when accepting tunnel connections: %s", ex.getMessage()));
+                }
+            } catch (IOException ex) {
+                logger.warn(String.format("Exception when accepting tunnel connections: %s", ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Checks the token of the service and replaces the current connection, if any, by the new one. Runs on the
+     * handshake pool; once the service is authenticated, its frames are read on a thread of its own.
+     */
+    private void open(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) HANDSHAKE_TIMEOUT_MILLIS);
+            final Connection candidate = new Connection(socket);
+            final Frame hello = candidate.readFrame(MAX_HELLO_SIZE, false);
+            final Json payload = hello.type == HELLO ? Json.parse(hello.payloadString()) : null;
+            if (payload == null || !validToken(payload.string(Parameter.TOKEN))) {
+                logger.warn(String.format("Tunnel connection from [%s] rejected: invalid handshake", socket.getRemoteSocketAddress()));
+                socket.close();
+                return;
+            }
+            candidate.peerMaxStreams(payload.integer("maxConcurrentStreams", MAX_CONCURRENT_STREAMS));
+            candidate.write(HELLO, 0, Json.map().set("maxConcurrentStreams", MAX_CONCURRENT_STREAMS).toString().getBytes(StandardCharsets.UTF_8));
+            socket.setSoTimeout(0);
+
+            final Connection previous = connection;
+            connection = candidate;
+            connections.increment();
+            if (previous != null) {
+                previous.close("replaced by a new connection");
+            }
+            logger.info(String.format("Service connected to the tunnel from [%s]", socket.getRemoteSocketAddress()));
+            daemon(candidate::readLoop, "proxy-tunnel-connection").start();
+        } catch (IOException | RuntimeException ex) {
+            logger.info(String.format("Tunnel connection from [%s] closed: %s", socket.getRemoteSocketAddress(), ex.getMessage()));
+            closeQuietly(socket);
+        }
+    }
+
+    /** Compared in constant time, so the token can not be guessed from how long the check takes */
+    private boolean validToken(String token) {
+        if (serviceToken == null) {
+            return true;
+        }
+        return token != null && MessageDigest.isEqual(serviceToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to close tunnel connection: %s", ex.getMessage()));
+        }
+    }
+
+    private void heartbeat() {
+        final Connection current = connection;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        if (System.currentTimeMillis() - current.lastReceived > HEARTBEAT_MILLIS * 3) {
+            current.close("no heartbeat from the service");
+            return;
+        }
+        try {
+            current.write(PING, 0, new byte[0]);
+        } catch (IOException ex) {
+            current.close(ex.getMessage());
+        }
+    }
+
+    /** Handles a request of the service on the web server of the proxy */
+    private void handle(Connection source, int stream, Json request) {
+        Json response;
+        try {
+            final RequestBuilder builder = RequestBuilder.create(request.string("method", RestMethod.GET.name()))
+                    .setUri(localUri + request.string("path", "/"));
+            final Json headers = request.json("headers");
+            if (headers != null) {
+                headers.forEachMapString((name, value) -> {
+                    if (!CONNECTION_HEADERS.contains(name)) {
+                        builder.addHeader(name, value);
+                    }
+                });
+            }
+            final Json parameters = request.json("parameters");
+            if (parameters != null) {
+                parameters.forEachMapString(builder::addParameter);
+            }
+            final String encodedBody = request.string(BODY_BASE64);
+            final Object body = request.object(BODY);
+            if (encodedBody != null) {
+                // the content type, like the boundary of a multipart form, comes in the headers of the request
+                builder.setEntity(new ByteArrayEntity(Base64.decodeBase64(encodedBody)));
+            } else if (body != null) {
+                final Object json = toBody(body);
+                builder.setEntity(json instanceof Json
+                        ? new StringEntity(json.toString(), ContentType.APPLICATION_JSON)
+                        : new StringEntity(body.toString(), StandardCharsets.UTF_8));
+            }
+            try (CloseableHttpResponse httpResponse = loopbackClient.execute(builder.build())) {
+                final Json responseHeaders = Json.map();
+                for (Header header : httpResponse.getAllHeaders()) {
+                    if (!CONNECTION_HEADERS.contains(header.getName())) {
+                        responseHeaders.set(header.getName(), header.getValue());
+                    }
+                }
+                response = Json.map()
+                        .set("status", httpResponse.getStatusLine().getStatusCode())
+                        .set("headers", responseHeaders);
+                final HttpEntity entity = httpResponse.getEntity();
+                final byte[] content = entity != null ? readLimited(entity) : new byte[0];
+                if (content == null) {
+                    framesTooLarge.increment();
+                    response = tooLargeResponse(String.format("Response of [%s] is too large for the tunnel", request.string("path")));
+                } else if (content.length > 0) {
+                    setBody(response, content, ContentType.get(entity));
+                }
+            }
+        } catch (Exception ex) {
+            logger.warn(String.format("Exception when handling tunnel request [%s]: %s", request.string("path"), ex.getMessage()));
+            response = Json.map().set("status", HttpStatus.SC_BAD_GATEWAY).set(BODY, String.valueOf(ex.getMessage()));
+        }
+        source.respond(stream, response);
+    }
+
+    /** JSON is sent parsed and text as it is; anything else goes in base64 so it is not corrupted */
+    private static void setBody(Json message, byte[] content, ContentType contentType) {
+        final String mimeType = contentType != null ? contentType.getMimeType() : null;
+        if (mimeType != null && ContentType.APPLICATION_JSON.getMimeType().equalsIgnoreCase(mimeType)) {
+            final Charset charset = contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+            final String text = new String(content, charset);
+            message.set(BODY, text.isBlank() ? text : Json.parse(text));
+        } else if (mimeType != null && (mimeType.toLowerCase().startsWith("text/") || contentType.getCharset() != null)) {
+            final Charset charset = contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.ISO_8859_1;
+            message.set(BODY, new String(content, charset));
+        } else {
+            message.set(BODY_BASE64, Base64.encodeBase64String(content));
+        }
+    }
+
+    /** Whole content of the entity, or null when it is larger than what fits in a frame */
+    private static byte[] readLimited(HttpEntity entity) throws IOException {
+        if (entity.getContentLength() > MAX_BODY_SIZE) {
+            EntityUtils.consumeQuietly(entity);
+            return null;
+        }
+        try (InputStream is = entity.getContent()) {
+            if (is == null) {
+                return new byte[0];
+            }
+            final byte[] content = is.readNBytes(MAX_BODY_SIZE + 1);
+            return content.length > MAX_BODY_SIZE ? null : content;
+        }
+    }
+
+    private static boolean fits(byte[] payload) {
+        return payload.length + 5 <= MAX_FRAME_SIZE;
+    }
+
+    private static Json tooLargeResponse(String message) {
+        return Json.map().set("status", HttpStatus.SC_BAD_GATEWAY).set(BODY, message);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static class Frame {
+        private final byte type;
+        private final int stream;
+        private final byte[] payload;
+
+        Frame(byte type, int stream, byte[] payload) {
+            this.type = type;
+            this.stream = stream;
+            this.payload = payload;
+        }
+
+        String payloadString() {
+            return payload != null ? new String(payload, StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    /** One connection of the service: a reader thread, writes serialized on the output stream */
+    private class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Map<Integer, CompletableFuture<Json>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextStream = new AtomicInteger(1);
+        private volatile Semaphore streams = new Semaphore(MAX_CONCURRENT_STREAMS);
+        private volatile boolean open = true;
+        private volatile long lastReceived = System.currentTimeMillis();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE));
+        }
+
+        void peerMaxStreams(int maxStreams) {
+            streams = new Semaphore(Math.max(1, maxStreams));
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Sends the serialized request, which has to fit in a frame, and waits for its response. When the
+         * connection is lost the request may not have reached the service, so the error is retryable.
+         */
+        Json request(byte[] payload, String path, long timeoutMillis) {
+            boolean acquired;
+            try {
+                acquired = streams.tryAcquire(STREAM_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                throw ServiceException.retryable(ErrorCode.CLIENT, "Too many concurrent requests on the tunnel, try again later");
+            }
+            // odd ids for the streams of the proxy
+            final int stream = nextStream.getAndAdd(2);
+            final CompletableFuture<Json> response = new CompletableFuture<>();
+            pending.put(stream, response);
+            try {
+                write(REQUEST, stream, payload);
+                return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (IOException ex) {
+                close(ex.getMessage());
+                throw ServiceException.retryable(ErrorCode.CLIENT, String.format("Exception when sending request through the tunnel: %s", ex.getMessage()), ex);
+            } catch (TimeoutException ex) {
+                throw ServiceException.permanent(ErrorCode.CLIENT, String.format("Service did not answer [%s] through the tunnel", path));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw ServiceException.permanent(ErrorCode.CLIENT, "Interrupted while waiting for the tunnel");
+            } catch (ExecutionException ex) {
+                throw ServiceException.retryable(ErrorCode.CLIENT, String.format("Tunnel closed: %s", ex.getCause().getMessage()));
+            } finally {
+                pending.remove(stream);
+                streams.release();
+            }
+        }
+
+        void respond(int stream, Json response) {
+            try {
+                byte[] payload = response.toString().getBytes(StandardCharsets.UTF_8);
+                if (!fits(payload)) {
+                    framesTooLarge.increment();
+                    payload = tooLargeResponse("Response is too large for the tunnel").toString().getBytes(StandardCharsets.UTF_8);
+                }
+                write(RESPONSE, stream, payload);
+            } catch (IOException ex) {
+                close(ex.getMessage());
+            }
+        }
+
+        void write(byte type, int stream, byte[] payload) throws IOException {
+            synchronized (out) {
+                out.writeInt(payload.length + 5);
+                out.writeByte(type);
+                out.writeInt(stream);
+                out.write(payload);
+                out.flush();
+            }
+            framesSent.increment();
+            bytesSent.add(payload.length + 9);
+        }
+
+        /**
+         * Reads the next frame. The payload of a frame larger than <code>maxSize</code> is skipped and left null
+         * when <code>skipTooLarge</code>; otherwise the frame fails, before anything is allocated for it.
+         */
+        Frame readFrame(int maxSize, boolean skipTooLarge) throws IOException {
+            final int length = in.readInt();
+            if (length < 5 || (length > maxSize && !skipTooLarge)) {
+                throw new IOException(String.format("Invalid frame length [%s]", length));
+            }
+            final byte type = in.readByte();
+            final int stream = in.readInt();
+            final byte[] payload;
+            if (length > maxSize) {
+                in.skipNBytes(length - 5);
+                framesTooLarge.increment();
+                payload = null;
+            } else {
+                payload = new byte[length - 5];
+                in.readFully(payload);
+            }
+            framesReceived.increment();
+            bytesReceived.add(length + 4);
+            lastReceived = System.currentTimeMillis();
+            return new Frame(type, stream, payload);
+        }
+
+        void readLoop() {
+            try {
+                while (open) {
+                    final Frame frame = readFrame(MAX_FRAME_SIZE, true);
+                    if (frame.payload == null) {
+                        answerTooLarge(frame);
+                        continue;
+                    }
+                    switch (frame.type) {
+                        case REQUEST:
+                            requestsReceived.increment();
+                            final Json request = Json.parse(frame.payloadString());
+                            try {
+                                requestExecutor.execute(() -> handle(this, frame.stream, request));
+                            } catch (RejectedExecutionException ex) {
+                                requestsRejected.increment();
+                                respond(frame.stream, Json.map().set("status", 503).set("body", "Too many concurrent requests on the tunnel"));
+                            }
+                            break;
+                        case RESPONSE:
+                            final CompletableFuture<Json> response = pending.get(frame.stream);
+                            if (response != null) {
+                                response.complete(Json.parse(frame.payloadString()));
+                            }
+                            break;
+                        case PING:
+                            write(PONG, frame.stream, new byte[0]);
+                            break;
+                        case PONG:
+                            break;
+                        default:
+                            logger.warn(String.format("Unknown tunnel frame type [%s] ignored", frame.type));
+                    }
+                }
+            } catch (EOFException ex) {
+                close("closed by the service");
+            } catch (IOException | RuntimeException ex) {
+                close(ex.getMessage());
+            }
+        }
+
+        /** Answers a request that was too large, and fails the request whose response was */
+        private void answerTooLarge(Frame frame) {
+            logger.warn(String.format("Tunnel frame of type [%s] on stream [%s] is larger than [%s] bytes, skipped", frame.type, frame.stream, MAX_FRAME_SIZE));
+            if (frame.type == REQUEST) {
+                respond(frame.stream, Json.map().set("status", HttpStatus.SC_REQUEST_TOO_LONG).set(BODY, "Request is too large for the tunnel"));
+            } else if (frame.type == RESPONSE) {
+                final CompletableFuture<Json> response = pending.get(frame.stream);
+                if (response != null) {
+                    response.complete(tooLargeResponse("Response of the service is too large for the tunnel"));
+                }
+            }
+        }
+
+        void close(String reason) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            logger.info(String.format("Tunnel connection closed: %s", reason));
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                logger.debug(String.format("Exception when try to close tunnel connection: %s", ex.getMessage()));
+            }
+            final IOException cause = new IOException(reason);
+            pending.values().forEach(response -> response.completeExceptionally(cause));
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ErrorCode;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.utils.Json;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Resumable uploads of large files in chunks.
+ * <p>
+ * Each session writes to its own temporary file. Chunks have a fixed size (except the last one),
+ * so each of them is written at its own offset and they can be sent in parallel and in any order; a chunk whose
+ * SHA-256 does not match is discarded and can be sent again on its own. Once all chunks are there, the file is
+ * handed as a single stream to the application. Sessions without activity for a while are discarded.
+ */
+public class UploadSessions {
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessions.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final long MAX_FILE_SIZE = 4L * 1024 * 1024 * 1024;
+    public static final int MAX_SESSIONS = 100;
+    public static final long SESSION_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final String SHA_256 = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder chunksReceived = new LongAdder();
+    private final LongAdder chunksRejected = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    public UploadSessions() throws IOException {
+        this.directory = Files.createTempDirectory("proxy-uploads");
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "proxy-upload-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Opens a session for a file of <code>size</code> bytes. <code>checksum</code> is the optional SHA-256 of
+     * the whole file, in hex, checked on commit.
+     */
+    public Json create(String fileName, String contentType, long size, Integer chunkSize, String checksum) {
+        if (StringUtils.isBlank(fileName)) {
+            throw ServiceException.permanent(ErrorCode.API, "File name is required");
+        }
+        if (size <= 0 || size > MAX_FILE_SIZE) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Size must be between 1 and [%s] bytes", MAX_FILE_SIZE));
+        }
+        final int effectiveChunkSize = chunkSize != null ? chunkSize : DEFAULT_CHUNK_SIZE;
+        if (effectiveChunkSize < MIN_CHUNK_SIZE || effectiveChunkSize > MAX_CHUNK_SIZE) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Chunk size must be between [%s] and [%s] bytes", MIN_CHUNK_SIZE, MAX_CHUNK_SIZE));
+        }
+        if (sessions.size() >= MAX_SESSIONS) {
+            expireSessions();
+            if (sessions.size() >= MAX_SESSIONS) {
+                throw ServiceException.retryable(ErrorCode.API, "Too many uploads in progress, try again later");
+            }
+        }
+        final String uploadId = UUID.randomUUID().toString();
+        final Session session;
+        try {
+            session = new Session(uploadId, directory.resolve(uploadId), fileName, contentType, size, effectiveChunkSize, StringUtils.trimToNull(checksum));
+        } catch (IOException ex) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Exception when try to create upload session: %s", ex.getMessage()), ex);
+        }
+        sessions.put(uploadId, session);
+        created.increment();
+        logger.info(String.format("Upload session [%s] created for file [%s] of [%s] bytes in [%s] chunks", uploadId, fileName, size, session.chunks));
+        return session.toJson();
+    }
+
+    /**
+     * Writes chunk <code>index</code> from <code>content</code>. When <code>digest</code> is given (the value of a
+     * <code>Content-Digest</code> header with <code>sha-256</code>, or a hex SHA-256) the chunk is kept only if
+     * it matches.
+     */
+    public Json putChunk(String uploadId, int index, InputStream content, String digest) {
+        final Session session = session(uploadId);
+        if (index < 0 || index >= session.chunks) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Chunk must be between 0 and [%s]", session.chunks - 1));
+        }
+        final long offset = (long) index * session.chunkSize;
+        final long expectedLength = Math.min(session.chunkSize, session.size - offset);
+        // a chunk sent again is missing until it is written and checked again
+        session.beginWrite(index);
+        final MessageDigest sha256 = sha256();
+        long written = 0;
+        final byte[] actual;
+        boolean stored = false;
+        try {
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buffer)) >= 0) {
+                    if (written + read > expectedLength) {
+                        chunksRejected.increment();
+                        throw ServiceException.permanent(ErrorCode.API, String.format("Chunk [%s] is longer than [%s] bytes", index, expectedLength));
+                    }
+                    sha256.update(buffer, 0, read);
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        written += session.channel.write(data, offset + written);
+                    }
+                }
+            } catch (IOException ex) {
+                chunksRejected.increment();
+                throw ServiceException.retryable(ErrorCode.API, String.format("Exception when receiving chunk [%s]: %s", index, ex.getMessage()), ex);
+            }
+            if (written != expectedLength) {
+                chunksRejected.increment();
+                throw ServiceException.permanent(ErrorCode.API, String.format("Chunk [%s] has [%s] bytes, expected [%s]", index, written, expectedLength));
+            }
+            actual = sha256.digest();
+            if (digest != null && !matches(digest, actual)) {
+                chunksRejected.increment();
+                throw ServiceException.permanent(ErrorCode.API, String.format("Checksum of chunk [%s] does not match, send it again", index));
+            }
+            stored = true;
+        } finally {
+            session.endWrite(index, stored);
+        }
+        chunksReceived.increment();
+        bytesReceived.add(written);
+        return Json.map()
+                .set("uploadId", uploadId)
+                .set("chunk", index)
+                .set("checksum", Hex.encodeHexString(actual))
+                .set("received", session.receivedCount());
+    }
+
+    public Json status(String uploadId) {
+        return session(uploadId).toJson();
+    }
+
+    /**
+     * Hands the assembled file to <code>upload</code> once every chunk was received and, if a checksum was
+     * given for the file, it matches. The session is discarded after a successful upload. While it is being
+     * committed, chunks, aborts and other commits of the session are rejected; if the commit fails the session
+     * accepts them again.
+     */
+    public Json commit(String uploadId, Function<Session, Json> upload) {
+        final Session session = session(uploadId);
+        session.beginCommit();
+        boolean done = false;
+        try {
+            if (session.checksum != null) {
+                final String actual = session.checksum();
+                if (!session.checksum.equalsIgnoreCase(actual)) {
+                    throw ServiceException.permanent(ErrorCode.API, String.format("Checksum of upload [%s] is [%s], expected [%s]", uploadId, actual, session.checksum));
+                }
+            }
+            final Json file = upload.apply(session);
+            done = true;
+            remove(uploadId);
+            committed.increment();
+            logger.info(String.format("Upload session [%s] committed", uploadId));
+            return file;
+        } finally {
+            if (!done) {
+                session.endCommit();
+            }
+        }
+    }
+
+    public void abort(String uploadId) {
+        final Session session = session(uploadId);
+        if (session.isCommitting()) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Upload [%s] is being committed", uploadId));
+        }
+        remove(uploadId);
+        aborted.increment();
+    }
+
+    public void stop() {
+        reaper.shutdownNow();
+        sessions.keySet().forEach(this::remove);
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException ex) {
+            logger.debug(String.format("Exception when try to delete uploads directory: %s", ex.getMessage()));
+        }
+    }
+
+    public Json stats() {
+        return Json.map()
+                .set("sessions", sessions.size())
+                .set("created", created.sum())
+                .set("committed", committed.sum())
+                .set("aborted", aborted.sum())
+                .set("expired", expired.sum())
+                .set("chunksReceived", chunksReceived.sum())
+                .set("chunksRejected", chunksRejected.sum())
+                .set("bytesReceived", bytesReceived.sum());
+    }
+
+    private Session session(String uploadId) {
+        final Session session = uploadId != null ? sessions.get(uploadId) : null;
+        if (session == null) {
+            throw ServiceException.permanent(ErrorCode.API, String.format("Upload [%s] does not exist or has expired", uploadId));
+        }
+        session.lastActivity = System.currentTimeMillis();
+        return session;
+    }
+
+    private void remove(String uploadId) {
+        final Session session = sessions.remove(uploadId);
+        if (session != null) {
+            session.delete();
+        }
+    }
+
+    private void expireSessions() {
+        final long limit = System.currentTimeMillis() - SESSION_TTL_MILLIS;
+        sessions.forEach((uploadId, session) -> {
+            if (session.lastActivity < limit && !session.isCommitting()) {
+                logger.info(String.format("Upload session [%s] expired", uploadId));
+                remove(uploadId);
+                expired.increment();
+            }
+        });
+    }
+
+    /** Accepts <code>sha-256=:base64:</code> (RFC 9530) or a plain hex digest */
+    private static boolean matches(String digest, byte[] actual) {
+        for (String item : digest.split(",")) {
+            final String value = item.trim();
+            final int separator = value.indexOf('=');
+            if (separator > 0 && value.substring(0, separator).trim().equalsIgnoreCase("sha-256")) {
+                return MessageDigest.isEqual(Base64.decodeBase64(StringUtils.strip(value.substring(separator + 1).trim(), ":")), actual);
+            }
+            if (separator < 0 && value.length() == actual.length * 2) {
+                return value.equalsIgnoreCase(Hex.encodeHexString(actual));
+            }
+        }
+        throw ServiceException.permanent(ErrorCode.API, String.format("Unsupported digest [%s], use sha-256", digest));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Temporary file of an upload and the chunks already written to it */
+    public static class Session {
+        private final String uploadId;
+        private final Path file;
+        private final FileChannel channel;
+        private final String fileName;
+        private final String contentType;
+        private final long size;
+        private final int chunkSize;
+        private final int chunks;
+        private final String checksum;
+        private final BitSet received;
+        /** Chunks being written */
+        private int writing = 0;
+        private boolean committing = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        Session(String uploadId, Path file, String fileName, String contentType, long size, int chunkSize, String checksum) throws IOException {
+            this.uploadId = uploadId;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            this.checksum = checksum;
+            this.received = new BitSet(chunks);
+        }
+
+        public String fileName() {
+            return fileName;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        /** Assembled file, read from the start */
+        public InputStream open() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        private synchronized void beginWrite(int index) {
+            if (committing) {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Upload [%s] is being committed, no more chunks are accepted", uploadId));
+            }
+            writing++;
+            received.clear(index);
+        }
+
+        private synchronized void endWrite(int index, boolean stored) {
+            writing--;
+            if (stored) {
+                received.set(index);
+            }
+        }
+
+        /** Only one commit at a time, and only when every chunk was written and none is being written again */
+        private synchronized void beginCommit() {
+            if (committing) {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Upload [%s] is already being committed", uploadId));
+            }
+            if (writing > 0) {
+                throw ServiceException.retryable(ErrorCode.API, String.format("Upload [%s] has chunks being written, try again later", uploadId));
+            }
+            if (received.cardinality() < chunks) {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Upload [%s] is missing [%s] chunks", uploadId, chunks - received.cardinality()));
+            }
+            committing = true;
+        }
+
+        private synchronized void endCommit() {
+            committing = false;
+        }
+
+        private synchronized boolean isCommitting() {
+            return committing;
+        }
+
+        private synchronized int receivedCount() {
+            return received.cardinality();
+        }
+
+        private String checksum() {
+            final MessageDigest sha256 = sha256();
+            try (InputStream is = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ))) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    sha256.update(buffer, 0, read);
+                }
+            } catch (IOException ex) {
+                throw ServiceException.permanent(ErrorCode.API, String.format("Exception when try to read upload [%s]: %s", uploadId, ex.getMessage()), ex);
+            }
+            return Hex.encodeHexString(sha256.digest());
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                logger.warn(String.format("Exception when try to delete upload [%s]: %s", uploadId, ex.getMessage()));
+            }
+        }
+
+        private synchronized Json toJson() {
+            final Json missing = Json.list();
+            for (int index = received.nextClearBit(0); index < chunks; index = received.nextClearBit(index + 1)) {
+                missing.add(index);
+            }
+            return Json.map()
+                    .set("uploadId", uploadId)
+                    .set("fileName", fileName)
+                    .setIfNotNull("contentType", contentType)
+                    .set("size", size)
+                    .set("chunkSize", chunkSize)
+                    .set("chunks", chunks)
+                    .set("received", received.cardinality())
+                    .set("missing", missing)
+                    .set("expiresAt", lastActivity + SESSION_TTL_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.slingr.services.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveTimeoutTest {
+
+    @Test
+    void usesMaximumUntilEnoughSamples() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(1000, 60000);
+        record(timeout, 31, 100);
+
+        assertEquals(60000, timeout.timeoutMillis());
+    }
+
+    @Test
+    void followsP99Latency() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(1000, 60000);
+        record(timeout, 32, 2000);
+
+        assertEquals(8000, timeout.timeoutMillis());
+        assertEquals(2000, timeout.stats().longInteger("p99Millis"));
+    }
+
+    @Test
+    void staysBetweenMinimumAndMaximum() {
+        final AdaptiveTimeout fast = new AdaptiveTimeout(1000, 60000);
+        record(fast, 32, 10);
+        final AdaptiveTimeout slow = new AdaptiveTimeout(1000, 60000);
+        record(slow, 32, 30000);
+
+        assertEquals(1000, fast.timeoutMillis());
+        assertEquals(60000, slow.timeoutMillis());
+    }
+
+    private static void record(AdaptiveTimeout timeout, int calls, long millis) {
+        for (int i = 0; i < calls; i++) {
+            timeout.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.slingr.services.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveTimeoutsTest {
+    private final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(1000, 60000);
+
+    @Test
+    void operationsAreTimedApart() {
+        record("GET /fast", 32, 100);
+        record("POST /slow", 32, 10000);
+
+        assertEquals(1000, timeouts.timeoutMillis("GET /fast"));
+        assertEquals(40000, timeouts.timeoutMillis("POST /slow"));
+        assertEquals(60000, timeouts.timeoutMillis("GET /other"));
+    }
+
+    @Test
+    void operationsWithoutKeyUseMaximum() {
+        record(null, 64, 100);
+
+        assertEquals(60000, timeouts.timeoutMillis(null));
+        assertEquals(0, timeouts.stats().size());
+    }
+
+    @Test
+    void operationsOverLimitUseMaximum() {
+        for (int i = 0; i < AdaptiveTimeouts.MAX_OPERATIONS; i++) {
+            record("GET /" + i, 1, 100);
+        }
+        record("GET /last", 32, 100);
+
+        assertEquals(60000, timeouts.timeoutMillis("GET /last"));
+        assertEquals(AdaptiveTimeouts.MAX_OPERATIONS, timeouts.stats().size());
+    }
+
+    @Test
+    void timedOutCallsLetTimeoutGrowAgain() {
+        record("GET /items", 32, 100);
+        assertEquals(1000, timeouts.timeoutMillis("GET /items"));
+
+        record("GET /items", 32, 1000);
+
+        assertEquals(4000, timeouts.timeoutMillis("GET /items"));
+    }
+
+    private void record(String operation, int calls, long millis) {
+        for (int i = 0; i < calls; i++) {
+            timeouts.record(operation, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncSyncEventsTest {
+    private final AsyncSyncEvents events = new AsyncSyncEvents(1, 1, 10, AsyncSyncEvents.DEFAULT_RESULT_TTL_MILLIS);
+
+    @AfterEach
+    void stop() {
+        events.stop();
+    }
+
+    @Test
+    void slowCallbackDoesNotHoldEvents() throws InterruptedException {
+        final CountDownLatch callbackStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        events.submit(() -> Json.map().set("value", 1), result -> {
+            callbackStarted.countDown();
+            await(release);
+        });
+        assertTrue(callbackStarted.await(5, TimeUnit.SECONDS));
+
+        final String correlationId = events.submit(() -> Json.map().set("value", 2), null);
+        final Json result = events.poll(correlationId, 5000);
+        release.countDown();
+
+        assertEquals(AsyncSyncEvents.STATUS_COMPLETED, result.string("status"));
+        assertEquals(2, result.integer("value"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
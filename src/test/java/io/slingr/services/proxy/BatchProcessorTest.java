@@ -0,0 +1,120 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchProcessorTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final BatchProcessor processor = new BatchProcessor(executor, 3);
+
+    @AfterEach
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void duplicateIdsInChunkAreSavedInOrder() {
+        final Map<String, String> store = new ConcurrentHashMap<>();
+        final AtomicInteger inserts = new AtomicInteger();
+        final List<Object> items = List.of(
+                Map.of("_id", "a", "value", "1"),
+                Map.of("_id", "b", "value", "2"),
+                Map.of("_id", "a", "value", "3"),
+                Map.of("_id", "a", "value", "4"));
+
+        final Json summary = processor.process(items.iterator(), "saved", item -> (String) ((Map<?, ?>) item).get("_id"), item -> {
+            final Map<?, ?> document = (Map<?, ?>) item;
+            final String id = (String) document.get("_id");
+            if (!store.containsKey(id)) {
+                sleep(50);
+                inserts.incrementAndGet();
+            }
+            store.put(id, (String) document.get("value"));
+            return Json.map().set("_id", id);
+        });
+
+        assertEquals(4, summary.integer("saved"));
+        assertEquals(0, summary.integer("failed"));
+        assertEquals(2, inserts.get());
+        assertEquals("4", store.get("a"));
+        assertEquals("2", store.get("b"));
+    }
+
+    @Test
+    void failedItemDoesNotStopItemsWithSameKey() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Json summary = processor.process(List.of("x", "x").iterator(), "removed", item -> (String) item, item -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("not found");
+            }
+            return Json.map();
+        });
+
+        assertEquals(1, summary.integer("removed"));
+        assertEquals("not found", summary.jsons("items").get(0).string("error"));
+        assertTrue(summary.jsons("items").get(1).is("removed"));
+    }
+
+    @Test
+    void reportsResultsInBatchOrderAcrossChunks() {
+        final Json summary = processor.process(List.of(1, 2, 3, 4, 5).iterator(), "accepted", null, item -> {
+            if ((Integer) item == 4) {
+                throw new IllegalArgumentException("invalid item");
+            }
+            return Json.map().set("value", item);
+        });
+        final List<Json> results = summary.jsons("items");
+
+        assertEquals(4, summary.integer("accepted"));
+        assertEquals(1, summary.integer("failed"));
+        assertEquals(5, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).integer("index"));
+        }
+        assertFalse(results.get(3).is("accepted"));
+        assertTrue(results.get(4).is("accepted"));
+    }
+
+    @Test
+    void itemsWithSameKeyKeepBatchOrder() {
+        final List<Object> sent = new CopyOnWriteArrayList<>();
+        final Json summary = processor.process(List.of(1, 2, 3, 4, 5, 6, 7).iterator(), "accepted", item -> "events", item -> {
+            sleep(10 * (8 - (Integer) item));
+            sent.add(item);
+            return Json.map();
+        });
+
+        assertEquals(7, summary.integer("accepted"));
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7), sent);
+    }
+
+    @Test
+    void itemsWithInvalidKeyRunInParallel() {
+        final Json summary = processor.process(List.of("a", "b").iterator(), "saved", item -> {
+            throw new IllegalArgumentException("invalid item");
+        }, item -> Json.map());
+
+        assertEquals(2, summary.integer("saved"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
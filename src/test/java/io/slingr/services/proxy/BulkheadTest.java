@@ -0,0 +1,96 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkheadTest {
+    private final CountDownLatch finish = new CountDownLatch(1);
+
+    @AfterEach
+    void release() {
+        finish.countDown();
+    }
+
+    @Test
+    void callsOverQueueAreRejected() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead("tests", 1, 1, 5);
+        final CompletableFuture<String> active = hold(bulkhead);
+        final CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> bulkhead.execute(() -> "queued"));
+        waitFor(bulkhead, "waiting", 1);
+
+        assertThrows(ServiceException.class, () -> bulkhead.execute(() -> "rejected"));
+        assertEquals(1, bulkhead.stats().longInteger("rejected"));
+
+        finish.countDown();
+        assertEquals("active", active.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, bulkhead.stats().longInteger("active"));
+    }
+
+    @Test
+    void waitingTooLongIsRejected() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead("tests", 1, 10, 0);
+        hold(bulkhead);
+
+        assertThrows(ServiceException.class, () -> bulkhead.execute(() -> "late"));
+        assertEquals(0, bulkhead.stats().longInteger("waiting"));
+    }
+
+    @Test
+    void queuedCallRunsWhenPermitIsReleased() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead("tests", 1, 1, 5);
+        hold(bulkhead);
+        final CountDownLatch queuedRunning = new CountDownLatch(1);
+        final CountDownLatch queuedFinish = new CountDownLatch(1);
+        final CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> bulkhead.execute(() -> {
+            queuedRunning.countDown();
+            await(queuedFinish);
+            return "queued";
+        }));
+        waitFor(bulkhead, "waiting", 1);
+
+        finish.countDown();
+        assertTrue(queuedRunning.await(5, TimeUnit.SECONDS));
+        assertEquals(1, bulkhead.stats().longInteger("active"));
+        assertFalse(queued.isDone());
+        queuedFinish.countDown();
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<String> hold(Bulkhead bulkhead) throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CompletableFuture<String> call = CompletableFuture.supplyAsync(() -> bulkhead.execute(() -> {
+            running.countDown();
+            await(finish);
+            return "active";
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        return call;
+    }
+
+    private static void waitFor(Bulkhead bulkhead, String stat, long expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bulkhead.stats().longInteger(stat) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, bulkhead.stats().longInteger(stat));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
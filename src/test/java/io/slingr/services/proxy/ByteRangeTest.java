@@ -0,0 +1,74 @@
+package io.slingr.services.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ByteRangeTest {
+
+    @Test
+    void closedRange() {
+        final ByteRange range = ByteRange.parse("bytes=2-5", 10);
+
+        assertEquals(2, range.start());
+        assertEquals(5, range.end());
+        assertEquals(4, range.length());
+        assertEquals("bytes 2-5/10", range.contentRange(10));
+    }
+
+    @Test
+    void openAndLongRangesEndAtLastByte() {
+        assertEquals("bytes 4-9/10", ByteRange.parse("bytes=4-", 10).contentRange(10));
+        assertEquals("bytes 4-9/10", ByteRange.parse("Bytes=4-100", 10).contentRange(10));
+    }
+
+    @Test
+    void suffixRange() {
+        assertEquals("bytes 7-9/10", ByteRange.parse("bytes=-3", 10).contentRange(10));
+        assertEquals("bytes 0-9/10", ByteRange.parse("bytes=-30", 10).contentRange(10));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 10));
+    }
+
+    @Test
+    void startPastEndIsUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=10-", 10));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+        assertEquals("bytes */10", ByteRange.UNSATISFIABLE.contentRange(10));
+    }
+
+    @Test
+    void invalidRangesAreIgnored() {
+        assertNull(ByteRange.parse("bytes=5-3", 10));
+        assertNull(ByteRange.parse("bytes=0-1,4-5", 10));
+        assertNull(ByteRange.parse("items=0-1", 10));
+        assertNull(ByteRange.parse("bytes=-", 10));
+        assertNull(ByteRange.parse("bytes=a-1", 10));
+        assertNull(ByteRange.parse("bytes=+1-2", 10));
+        assertNull(ByteRange.parse("bytes=1-2-3", 10));
+        assertNull(ByteRange.parse("bytes=99999999999999999999-", 10));
+        assertNull(ByteRange.parse(null, 10));
+    }
+
+    @Test
+    void rangesAreIgnoredWithoutLength() {
+        assertNull(ByteRange.parse("bytes=0-1", -1));
+        assertNull(ByteRange.parse("bytes=5-", -1));
+        assertNull(ByteRange.parse("bytes=-5", -1));
+    }
+
+    @Test
+    void rangeInputStreamReadsOnlyTheRange() throws IOException {
+        final ByteRange range = ByteRange.parse("bytes=3-6", 10);
+        try (InputStream in = new RangeInputStream(new ByteArrayInputStream("0123456789".getBytes(StandardCharsets.UTF_8)), range.start(), range.length())) {
+            assertEquals("3456", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+    private static final long SLOW_NANOS = TimeUnit.SECONDS.toNanos(11);
+
+    @Test
+    void staysClosedBelowMinimumCalls() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        for (int i = 0; i < 9; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.state());
+        assertDoesNotThrow(circuitBreaker::acquirePermission);
+    }
+
+    @Test
+    void opensOnFailureRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(i % 2 == 0, 0);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertThrows(ServiceException.class, circuitBreaker::acquirePermission);
+        assertEquals(1, circuitBreaker.stats().longInteger("rejected"));
+    }
+
+    @Test
+    void opensOnSlowCallRate() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(false, i < 8 ? SLOW_NANOS : 0);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+    }
+
+    @Test
+    void closesAfterSuccessfulTrialCalls() {
+        final CircuitBreaker circuitBreaker = open(new CircuitBreaker(0));
+
+        assertTrue(circuitBreaker.isCallPermitted());
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.acquirePermission();
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.state());
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertThrows(ServiceException.class, circuitBreaker::acquirePermission);
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onResult(false, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.state());
+    }
+
+    @Test
+    void failedTrialCallOpensAgain() {
+        final CircuitBreaker circuitBreaker = open(new CircuitBreaker(0));
+        circuitBreaker.acquirePermission();
+
+        circuitBreaker.onResult(true, 0);
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertEquals(2, circuitBreaker.stats().longInteger("opened"));
+    }
+
+    @Test
+    void openCircuitPermitsCallsOnlyAfterWait() {
+        final CircuitBreaker circuitBreaker = open(new CircuitBreaker(TimeUnit.MILLISECONDS.toNanos(100)));
+        assertFalse(circuitBreaker.isCallPermitted());
+
+        sleep(150);
+
+        assertTrue(circuitBreaker.isCallPermitted());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        assertDoesNotThrow(circuitBreaker::acquirePermission);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.state());
+    }
+
+    @Test
+    void resetCloses() {
+        final CircuitBreaker circuitBreaker = open(new CircuitBreaker());
+
+        circuitBreaker.reset();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.state());
+        assertTrue(circuitBreaker.isCallPermitted());
+        // the window starts empty again
+        for (int i = 0; i < 9; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.state());
+    }
+
+    @Test
+    void onlyGatewayErrorsAreFailures() {
+        assertTrue(CircuitBreaker.isFailure(502));
+        assertTrue(CircuitBreaker.isFailure(503));
+        assertTrue(CircuitBreaker.isFailure(504));
+        assertFalse(CircuitBreaker.isFailure(500));
+        assertFalse(CircuitBreaker.isFailure(404));
+        assertFalse(CircuitBreaker.isFailure(200));
+    }
+
+    private static CircuitBreaker open(CircuitBreaker circuitBreaker) {
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.state());
+        return circuitBreaker;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
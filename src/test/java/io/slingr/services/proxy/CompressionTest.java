@@ -0,0 +1,69 @@
+package io.slingr.services.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressionTest {
+
+    @Test
+    void decompressesGzipResponses() throws IOException {
+        final Compression compression = new Compression(true, Compression.DEFAULT_THRESHOLD_BYTES, 1024);
+        final HttpResponse response = gzipResponse(new byte[1024]);
+
+        compression.decompress(response);
+
+        assertEquals(1024, EntityUtils.toByteArray(response.getEntity()).length);
+        assertNull(response.getFirstHeader("Content-Encoding"));
+        assertEquals(1, compression.stats().json("responses").longInteger("decompressed"));
+    }
+
+    @Test
+    void stopsDecompressingPastMaximumSize() throws IOException {
+        final Compression compression = new Compression(true, Compression.DEFAULT_THRESHOLD_BYTES, 1024);
+        final HttpResponse response = gzipResponse(new byte[1025]);
+
+        assertThrows(Compression.TooLargeException.class, () -> compression.decompress(response));
+        assertEquals(1, compression.stats().json("responses").longInteger("tooLarge"));
+    }
+
+    @Test
+    void compressesOnlyOnceNegotiated() throws IOException {
+        final Compression compression = new Compression(true, 10, Compression.DEFAULT_MAX_DECOMPRESSED_BYTES);
+        final StringEntity entity = new StringEntity("a".repeat(100), StandardCharsets.UTF_8);
+        final HttpResponse accepting = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        accepting.addHeader("Accept-Encoding", "br, gzip");
+
+        assertEquals(entity, compression.compress(entity));
+        compression.negotiate(accepting);
+        assertEquals("gzip", compression.compress(entity).getContentEncoding().getValue());
+        compression.rejected();
+        assertEquals(entity, compression.compress(entity));
+    }
+
+    private static HttpResponse gzipResponse(byte[] content) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(content);
+        }
+        final ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray());
+        entity.setContentEncoding("gzip");
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(entity);
+        response.addHeader("Content-Encoding", "gzip");
+        return response;
+    }
+}
@@ -0,0 +1,65 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentCacheTest {
+
+    @Test
+    void documentReadBeforeRemovalIsNotCached() {
+        final DocumentCache cache = new DocumentCache(10, 60);
+        final long generation = cache.generation();
+        cache.remove("ds", "a");
+
+        assertFalse(cache.put("ds", "a", Json.map().set("value", "old"), generation));
+        assertNull(cache.get("ds", "a"));
+        assertEquals(1, cache.stats().integer("stalePuts"));
+    }
+
+    @Test
+    void documentReadAfterRemovalIsCached() {
+        final DocumentCache cache = new DocumentCache(10, 60);
+        cache.remove("ds", "a");
+        final long generation = cache.generation();
+
+        assertTrue(cache.put("ds", "a", Json.map().set("value", "new"), generation));
+        assertEquals("new", cache.get("ds", "a").string("value"));
+    }
+
+    @Test
+    void staleReadDoesNotReplaceNewerDocument() {
+        final DocumentCache cache = new DocumentCache(10, 60);
+        final long oldGeneration = cache.generation();
+        cache.remove("ds", "a");
+        assertTrue(cache.put("ds", "a", Json.map().set("value", "new"), cache.generation()));
+
+        assertFalse(cache.put("ds", "a", Json.map().set("value", "old"), oldGeneration));
+        assertEquals("new", cache.get("ds", "a").string("value"));
+    }
+
+    @Test
+    void invalidationIsKeptWhenItsMarkerIsEvicted() {
+        final DocumentCache cache = new DocumentCache(2, 60);
+        final long generation = cache.generation();
+        cache.remove("ds", "a");
+        cache.put("ds", "b", Json.map(), cache.generation());
+        cache.put("ds", "c", Json.map(), cache.generation());
+
+        assertFalse(cache.put("ds", "a", Json.map().set("value", "old"), generation));
+    }
+
+    @Test
+    void clearDropsReadsInProgress() {
+        final DocumentCache cache = new DocumentCache(10, 60);
+        final long generation = cache.generation();
+        cache.clear();
+
+        assertFalse(cache.put("ds", "a", Json.map(), generation));
+        assertTrue(cache.put("ds", "a", Json.map(), cache.generation()));
+    }
+}
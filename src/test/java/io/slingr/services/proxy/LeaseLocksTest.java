@@ -0,0 +1,134 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.Locks;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeaseLocksTest {
+    private final PlatformLocks platform = new PlatformLocks();
+    private final LeaseLocks leaseLocks = new LeaseLocks(platform);
+
+    @AfterEach
+    void stop() {
+        leaseLocks.stop();
+    }
+
+    @Test
+    void fencingTokensGrowWithEachGrant() {
+        final LeaseLocks.Lease first = leaseLocks.acquire(List.of("a"), 0, 1000);
+        assertTrue(leaseLocks.release(first.id()));
+        final LeaseLocks.Lease second = leaseLocks.acquire(List.of("a"), 0, 1000);
+
+        assertTrue(second.fencingToken() > first.fencingToken());
+        assertTrue(platform.held.contains("a"));
+    }
+
+    @Test
+    void busyKeysAreNotGrantedWithoutWait() {
+        final LeaseLocks.Lease lease = leaseLocks.acquire(List.of("a", "b"), 0, 1000);
+
+        assertNull(leaseLocks.acquire(List.of("b", "c"), 0, 1000));
+        assertNotNull(leaseLocks.acquire(List.of("c"), 0, 1000));
+        assertTrue(leaseLocks.release(lease.id()));
+        assertFalse(leaseLocks.release(lease.id()));
+        assertFalse(platform.held.contains("a"));
+    }
+
+    @Test
+    void waitersAreServedInArrivalOrder() throws Exception {
+        final LeaseLocks.Lease holder = leaseLocks.acquire(List.of("a"), 0, 10000);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Void> first = waitFor("first", order);
+        awaitWaiting(1);
+        final CompletableFuture<Void> second = waitFor("second", order);
+        awaitWaiting(2);
+
+        leaseLocks.release(holder.id());
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("first", "second"), order);
+    }
+
+    @Test
+    void expiredLeaseHandsKeysToWaiter() {
+        final LeaseLocks.Lease expiring = leaseLocks.acquire(List.of("a"), 0, 100);
+        final LeaseLocks.Lease next = leaseLocks.acquire(List.of("a"), 5000, 1000);
+
+        assertNotNull(next);
+        assertTrue(next.fencingToken() > expiring.fencingToken());
+        assertNull(leaseLocks.renew(expiring.id(), 1000));
+        assertNotNull(leaseLocks.renew(next.id(), 1000));
+    }
+
+    @Test
+    void keysLockedOutsideProxyAreRetried() {
+        platform.held.add("a");
+        CompletableFuture.runAsync(() -> {
+            sleep(200);
+            platform.held.remove("a");
+        });
+
+        assertNotNull(leaseLocks.acquire(List.of("a"), 5000, 1000));
+    }
+
+    @Test
+    void invalidKeysAreRejected() {
+        assertThrows(ServiceException.class, () -> leaseLocks.acquire(List.of(), 0, 1000));
+        assertThrows(ServiceException.class, () -> leaseLocks.acquire(List.of(" "), 0, 1000));
+    }
+
+    private CompletableFuture<Void> waitFor(String name, List<String> order) {
+        return CompletableFuture.runAsync(() -> {
+            final LeaseLocks.Lease lease = leaseLocks.acquire(List.of("a"), 5000, 1000);
+            order.add(name);
+            sleep(50);
+            leaseLocks.release(lease.id());
+        }, runnable -> new Thread(runnable).start());
+    }
+
+    private void awaitWaiting(int waiting) {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (leaseLocks.stats().integer("waiting") < waiting && System.currentTimeMillis() < deadline) {
+            sleep(5);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Platform locks kept in memory */
+    private static class PlatformLocks implements Locks {
+        private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean lock(String key) {
+            return held.add(key);
+        }
+
+        @Override
+        public boolean unlock(String key) {
+            return held.remove(key);
+        }
+    }
+}
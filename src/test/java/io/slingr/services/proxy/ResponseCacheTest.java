@@ -0,0 +1,142 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ResponseCacheTest {
+    private final ResponseCache cache = new ResponseCache(1024 * 1024);
+    private final List<Json> requests = new ArrayList<>();
+
+    @Test
+    void freshResponsesAreServedFromCache() {
+        final Function<Json, ServiceClient.ExchangeResponse> service = service(200, "body", "Cache-Control", "max-age=60");
+
+        get(Json.map(), service);
+        final ServiceClient.ExchangeResponse response = get(Json.map(), service);
+
+        assertEquals(1, requests.size());
+        assertEquals(200, response.status());
+        assertEquals("body", response.body());
+        assertNotNull(response.headers().get("Age"));
+        assertEquals(1, cache.stats().longInteger("hits"));
+    }
+
+    @Test
+    void responsesWithoutExplicitFreshnessOrNotSharedAreNotStored() {
+        get(Json.map(), service(200, "body"));
+        get(Json.map(), service(200, "body", "Cache-Control", "private, max-age=60"));
+        get(Json.map(), service(200, "body", "Cache-Control", "no-store"));
+        get(Json.map().set("Authorization", "Bearer token"), service(200, "body", "Cache-Control", "max-age=60"));
+
+        assertEquals(0, cache.stats().longInteger("entries"));
+        get(Json.map(), service(200, "body"));
+        assertEquals(5, requests.size());
+    }
+
+    @Test
+    void varySelectsTheVariant() {
+        final Function<Json, ServiceClient.ExchangeResponse> service = request -> {
+            requests.add(request);
+            return response(200, request.string("Accept-Language"), "Cache-Control", "max-age=60", "Vary", "Accept-Language");
+        };
+
+        get(Json.map().set("Accept-Language", "en"), service);
+        get(Json.map().set("Accept-Language", "es"), service);
+        final ServiceClient.ExchangeResponse english = get(Json.map().set("accept-language", "en"), service);
+        final ServiceClient.ExchangeResponse spanish = get(Json.map().set("Accept-Language", "es"), service);
+
+        assertEquals(2, requests.size());
+        assertEquals("en", english.body());
+        assertEquals("es", spanish.body());
+        assertEquals(2, cache.stats().longInteger("entries"));
+    }
+
+    @Test
+    void staleResponsesAreRevalidated() {
+        get(Json.map(), service(200, "body", "Cache-Control", "no-cache", "ETag", "\"v1\""));
+
+        final ServiceClient.ExchangeResponse response = get(Json.map(), service(304, null, "Cache-Control", "max-age=60", "ETag", "\"v1\""));
+
+        assertEquals("\"v1\"", requests.get(1).string("If-None-Match"));
+        assertEquals(200, response.status());
+        assertEquals("body", response.body());
+        assertEquals(1, cache.stats().longInteger("revalidated"));
+        // the 304 made the response fresh again
+        get(Json.map(), service(200, "other"));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    void changedResponseReplacesTheStaleOne() {
+        get(Json.map(), service(200, "body", "Cache-Control", "no-cache", "ETag", "\"v1\""));
+
+        final ServiceClient.ExchangeResponse response = get(Json.map(), service(200, "changed", "Cache-Control", "max-age=60", "ETag", "\"v2\""));
+
+        assertEquals("changed", response.body());
+        assertEquals("changed", get(Json.map(), service(200, "other")).body());
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    void conditionalRequestsAreAnsweredWithNotModified() {
+        final Function<Json, ServiceClient.ExchangeResponse> service = service(200, "body", "Cache-Control", "max-age=60", "ETag", "\"v1\"",
+                "Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT", "Content-Type", "text/plain");
+        get(Json.map(), service);
+
+        final ServiceClient.ExchangeResponse byTag = get(Json.map().set("If-None-Match", "\"v0\", W/\"v1\""), service);
+        final ServiceClient.ExchangeResponse byDate = get(Json.map().set("If-Modified-Since", "Wed, 16 Nov 1994 00:00:00 GMT"), service);
+        final ServiceClient.ExchangeResponse changed = get(Json.map().set("If-None-Match", "\"v0\""), service);
+
+        assertEquals(304, byTag.status());
+        assertNull(byTag.body());
+        assertEquals("\"v1\"", byTag.headers().get("ETag"));
+        assertNull(byTag.headers().get("Content-Type"));
+        assertEquals(304, byDate.status());
+        assertEquals(200, changed.status());
+        assertEquals(1, requests.size());
+        assertEquals(2, cache.stats().longInteger("notModified"));
+    }
+
+    @Test
+    void invalidateDropsEveryQueryOfThePath() {
+        final Function<Json, ServiceClient.ExchangeResponse> service = service(200, "body", "Cache-Control", "max-age=60");
+        get(Json.map(), service);
+        cache.get("/items", Json.map().set("page", "2"), Json.map(), service);
+        cache.get("/items/1", null, Json.map(), service);
+
+        cache.invalidate("/items");
+
+        assertEquals(1, cache.stats().longInteger("entries"));
+        get(Json.map(), service);
+        assertEquals(4, requests.size());
+    }
+
+    private ServiceClient.ExchangeResponse get(Json headers, Function<Json, ServiceClient.ExchangeResponse> service) {
+        return cache.get("/items", null, headers, service);
+    }
+
+    private Function<Json, ServiceClient.ExchangeResponse> service(int status, Object body, String... headers) {
+        return request -> {
+            requests.add(request);
+            return response(status, body, headers);
+        };
+    }
+
+    private static ServiceClient.ExchangeResponse response(int status, Object body, String... headers) {
+        final Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+        return new ServiceClient.ExchangeResponse(status, map, body);
+    }
+}
@@ -0,0 +1,69 @@
+package io.slingr.services.proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import io.slingr.services.services.rest.RestMethod;
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ServiceClientTest {
+    private HttpServer server;
+    private ServiceTargets targets;
+    private ServiceClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/items", exchange -> {
+            final byte[] body = "[1,2,3]".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        targets = new ServiceTargets("http://127.0.0.1:" + server.getAddress().getPort(), null, ServiceTargets.Strategy.LEAST_OUTSTANDING, null);
+        client = new ServiceClient(targets, "token", 2, 30, false, new Compression(false, Compression.DEFAULT_THRESHOLD_BYTES, Compression.DEFAULT_MAX_DECOMPRESSED_BYTES));
+    }
+
+    @AfterEach
+    void stop() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    void streamedResponseIsOutstandingUntilClosed() throws IOException {
+        final ServiceClient.StreamedResponse response = client.stream(RestMethod.GET, "/items", Json.map(), null, null);
+        assertEquals(1, outstanding());
+
+        try (InputStream body = response.body()) {
+            assertEquals("[1,2,3]", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        response.body().close();
+
+        assertEquals(0, outstanding());
+    }
+
+    @Test
+    void bufferedResponseIsReleased() {
+        assertEquals(200, client.exchange(RestMethod.GET, "/items", Json.map(), null, null).status());
+        assertEquals(404, client.exchange(RestMethod.GET, "/missing", Json.map(), null, null).status());
+
+        assertEquals(0, outstanding());
+    }
+
+    private long outstanding() {
+        return targets.primary().stats().longInteger("outstanding");
+    }
+}
@@ -0,0 +1,160 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.utils.Json;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServiceTargetsTest {
+    private static final String PRIMARY = "http://localhost:10000";
+
+    @Test
+    void parsesUrisAndWeights() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY + "/", " http://a:1;weight=3 , http://b:2/, " + PRIMARY + ", ,http://c:3;weight=x",
+                ServiceTargets.Strategy.ROUND_ROBIN, null);
+
+        assertEquals(4, targets.all().size());
+        assertEquals(PRIMARY, targets.primary().uri());
+        assertEquals("http://a:1", targets.all().get(1).uri());
+        assertEquals("http://b:2", targets.all().get(2).uri());
+        assertEquals("http://c:3", targets.all().get(3).uri());
+        assertTrue(targets.isBalanced());
+    }
+
+    @Test
+    void singleTargetIsAlwaysPrimary() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, null, ServiceTargets.Strategy.LEAST_OUTSTANDING, null);
+        trip(targets.primary());
+
+        assertFalse(targets.isBalanced());
+        assertSame(targets.primary(), targets.select(null));
+    }
+
+    @Test
+    void roundRobinFollowsWeights() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, "http://a:1;weight=3", ServiceTargets.Strategy.ROUND_ROBIN, null);
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 400; i++) {
+            counts.merge(targets.select(null).uri(), 1, Integer::sum);
+        }
+
+        assertEquals(100, counts.get(PRIMARY));
+        assertEquals(300, counts.get("http://a:1"));
+    }
+
+    @Test
+    void leastOutstandingPicksIdleTarget() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.LEAST_OUTSTANDING, null);
+        targets.primary().begin();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("http://a:1", targets.select(null).uri());
+        }
+    }
+
+    @Test
+    void consistentHashIsStickyAndMovesOnlyWhenTargetIsDown() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, "http://a:1,http://b:2", ServiceTargets.Strategy.CONSISTENT_HASH, "X-Session");
+        final String key = targets.stickyKey(Json.map().set("x-session", "user-42"));
+        final ServiceTargets.Target selected = targets.select(key);
+
+        assertEquals("user-42", key);
+        for (int i = 0; i < 20; i++) {
+            assertSame(selected, targets.select(key));
+        }
+
+        markDown(selected);
+        final ServiceTargets.Target moved = targets.select(key);
+        assertTrue(moved != selected);
+        assertSame(moved, targets.select(key));
+    }
+
+    @Test
+    void stickyKeyOnlyWithConsistentHash() {
+        final Json headers = Json.map().set("X-Session", "user-42");
+
+        assertNull(new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.ROUND_ROBIN, "X-Session").stickyKey(headers));
+        assertNull(new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.CONSISTENT_HASH, null).stickyKey(headers));
+        assertNull(new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.CONSISTENT_HASH, "X-Other").stickyKey(headers));
+    }
+
+    @Test
+    void skipsUnavailableTargetsAndFallsBackToPrimary() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.ROUND_ROBIN, null);
+        final ServiceTargets.Target other = targets.all().get(1);
+        trip(targets.primary());
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(other, targets.select(null));
+        }
+
+        markDown(other);
+        assertSame(targets.primary(), targets.select(null));
+    }
+
+    @Test
+    void healthCheckBringsBackTargetWithOpenCircuit() {
+        final ServiceTargets targets = new ServiceTargets(PRIMARY, "http://a:1", ServiceTargets.Strategy.ROUND_ROBIN, null);
+        final ServiceTargets.Target other = targets.all().get(1);
+        trip(other);
+        assertFalse(other.isAvailable());
+
+        other.checked(true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, other.circuitBreaker().state());
+        assertTrue(other.isAvailable());
+    }
+
+    @Test
+    void healthCheckKeepsFailuresOfClosedCircuit() {
+        final ServiceTargets.Target target = new ServiceTargets(PRIMARY, null, ServiceTargets.Strategy.ROUND_ROBIN, null).primary();
+        for (int i = 0; i < 9; i++) {
+            target.circuitBreaker().onResult(true, 0);
+        }
+
+        target.checked(true);
+        target.circuitBreaker().onResult(true, 0);
+
+        assertEquals(CircuitBreaker.State.OPEN, target.circuitBreaker().state());
+    }
+
+    @Test
+    void targetGoesDownAndUpAfterThresholds() {
+        final ServiceTargets.Target target = new ServiceTargets(PRIMARY, null, ServiceTargets.Strategy.ROUND_ROBIN, null).primary();
+
+        target.checked(false);
+        assertTrue(target.isAvailable());
+        target.checked(false);
+        assertFalse(target.isAvailable());
+        target.checked(true);
+        assertFalse(target.isAvailable());
+        target.checked(true);
+        assertTrue(target.isAvailable());
+    }
+
+    @Test
+    void invalidStrategyFallsBackToLeastOutstanding() {
+        assertEquals(ServiceTargets.Strategy.LEAST_OUTSTANDING, ServiceTargets.Strategy.fromKey("random"));
+        assertEquals(ServiceTargets.Strategy.LEAST_OUTSTANDING, ServiceTargets.Strategy.fromKey(null));
+        assertEquals(ServiceTargets.Strategy.CONSISTENT_HASH, ServiceTargets.Strategy.fromKey(" ConsistentHash "));
+    }
+
+    private static void trip(ServiceTargets.Target target) {
+        for (int i = 0; i < 10; i++) {
+            target.circuitBreaker().onResult(true, 0);
+        }
+    }
+
+    private static void markDown(ServiceTargets.Target target) {
+        for (int i = 0; i < ServiceTargets.UNHEALTHY_THRESHOLD; i++) {
+            target.checked(false);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package io.slingr.services.proxy;
+
+import com.sun.net.httpserver.HttpServer;
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.services.exchange.Parameter;
+import io.slingr.services.services.rest.RestMethod;
+import io.slingr.services.utils.Json;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServiceTunnelTest {
+    private static final String TOKEN = "token";
+
+    private HttpServer server;
+    private int port;
+    private ServiceTunnel tunnel;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    @BeforeEach
+    void connect() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // echoes the body with the same content type
+        server.createContext("/echo", exchange -> {
+            final byte[] body = exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", exchange.getRequestHeaders().getFirst("Content-Type"));
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        port = freePort();
+        tunnel = new ServiceTunnel(port, TOKEN, "http://127.0.0.1:" + server.getAddress().getPort());
+        tunnel.start();
+
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+        write(ServiceTunnel.HELLO, 0, Json.map().set(Parameter.TOKEN, TOKEN).set("maxConcurrentStreams", 10).toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(ServiceTunnel.HELLO, readFrame().type);
+        // the connection is registered right after the HELLO of the proxy is sent
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!tunnel.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        socket.close();
+        tunnel.close();
+        server.stop(0);
+    }
+
+    @Test
+    void binaryBodiesAreNotCorrupted() throws IOException {
+        final byte[] content = new byte[256];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        write(ServiceTunnel.REQUEST, 2, Json.map()
+                .set("method", "POST")
+                .set("path", "/echo")
+                .set("headers", Json.map().set("Content-Type", "multipart/form-data; boundary=xyz").set("Content-Length", "1"))
+                .set("bodyBase64", Base64.encodeBase64String(content))
+                .toString().getBytes(StandardCharsets.UTF_8));
+
+        final Frame frame = readFrame();
+        final Json response = frame.json();
+        assertEquals(ServiceTunnel.RESPONSE, frame.type);
+        assertEquals(2, frame.stream);
+        assertEquals(200, response.integer("status"));
+        assertNull(response.object("body"));
+        assertArrayEquals(content, Base64.decodeBase64(response.string("bodyBase64")));
+    }
+
+    @Test
+    void jsonBodiesAreSentParsed() throws IOException {
+        write(ServiceTunnel.REQUEST, 2, Json.map()
+                .set("method", "POST")
+                .set("path", "/echo")
+                .set("body", Json.map().set("name", "\u00f1and\u00fa"))
+                .toString().getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("\u00f1and\u00fa", readFrame().json().json("body").string("name"));
+    }
+
+    @Test
+    void tooLargeRequestIsAnsweredAndConnectionStaysOpen() throws IOException {
+        write(ServiceTunnel.REQUEST, 2, new byte[16 * 1024 * 1024]);
+
+        final Frame frame = readFrame();
+        assertEquals(2, frame.stream);
+        assertEquals(413, frame.json().integer("status"));
+
+        write(ServiceTunnel.PING, 0, new byte[0]);
+        assertEquals(ServiceTunnel.PONG, readFrame().type);
+    }
+
+    @Test
+    void binaryRequestsOfProxyAreSentInBase64() throws Exception {
+        final byte[] content = {0, (byte) 0xff, 10, 13};
+        final CompletableFuture<ServiceClient.ExchangeResponse> exchange = CompletableFuture.supplyAsync(
+                () -> tunnel.exchange(RestMethod.POST, "/webhook", Json.map(), null, content));
+
+        final Frame request = readFrame();
+        assertEquals(1, request.stream);
+        assertArrayEquals(content, Base64.decodeBase64(request.json().string("bodyBase64")));
+        write(ServiceTunnel.RESPONSE, request.stream, Json.map()
+                .set("status", 201)
+                .set("headers", Json.map().set("Content-Type", "text/plain; charset=UTF-8"))
+                .set("bodyBase64", Base64.encodeBase64String("ok".getBytes(StandardCharsets.UTF_8)))
+                .toString().getBytes(StandardCharsets.UTF_8));
+
+        final ServiceClient.ExchangeResponse response = exchange.get(10, TimeUnit.SECONDS);
+        assertEquals(201, response.status());
+        assertEquals("ok", response.body());
+    }
+
+    @Test
+    void gatewayErrorsOpenCircuitOfTunnel() throws Exception {
+        answerWebhooks(503);
+
+        assertThrows(ServiceException.class, () -> tunnel.exchange(RestMethod.GET, "/webhook", null, null, null));
+        assertEquals("OPEN", tunnel.stats().json("circuitBreaker").string("state"));
+    }
+
+    @Test
+    void errorsOfWebhookHandlersDoNotOpenCircuit() throws Exception {
+        answerWebhooks(500);
+
+        assertEquals("CLOSED", tunnel.stats().json("circuitBreaker").string("state"));
+    }
+
+    private void answerWebhooks(int status) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final CompletableFuture<ServiceClient.ExchangeResponse> exchange = CompletableFuture.supplyAsync(
+                    () -> tunnel.exchange(RestMethod.GET, "/webhook", null, null, null));
+            write(ServiceTunnel.RESPONSE, readFrame().stream, Json.map().set("status", status).toString().getBytes(StandardCharsets.UTF_8));
+            assertEquals(status, exchange.get(10, TimeUnit.SECONDS).status());
+        }
+    }
+
+    @Test
+    void oversizedHelloIsRejectedBeforeReadingIt() throws IOException {
+        try (Socket other = new Socket("127.0.0.1", port)) {
+            other.setSoTimeout(10000);
+            final DataOutputStream otherOut = new DataOutputStream(other.getOutputStream());
+            otherOut.writeInt(ServiceTunnel.MAX_HELLO_SIZE + 6);
+            otherOut.writeByte(ServiceTunnel.HELLO);
+            otherOut.writeInt(0);
+            otherOut.flush();
+
+            assertEquals(-1, other.getInputStream().read());
+        }
+        assertTrue(tunnel.isConnected());
+    }
+
+    @Test
+    void invalidTokenIsRejected() throws IOException {
+        try (Socket other = new Socket("127.0.0.1", port)) {
+            other.setSoTimeout(10000);
+            final DataOutputStream otherOut = new DataOutputStream(other.getOutputStream());
+            final byte[] hello = Json.map().set(Parameter.TOKEN, "other").toString().getBytes(StandardCharsets.UTF_8);
+            otherOut.writeInt(hello.length + 5);
+            otherOut.writeByte(ServiceTunnel.HELLO);
+            otherOut.writeInt(0);
+            otherOut.write(hello);
+            otherOut.flush();
+
+            assertEquals(-1, other.getInputStream().read());
+        }
+    }
+
+    private void write(byte type, int stream, byte[] payload) throws IOException {
+        out.writeInt(payload.length + 5);
+        out.writeByte(type);
+        out.writeInt(stream);
+        out.write(payload);
+        out.flush();
+    }
+
+    private Frame readFrame() throws IOException {
+        while (true) {
+            final int length = in.readInt();
+            final byte type = in.readByte();
+            final int stream = in.readInt();
+            final byte[] payload = new byte[length - 5];
+            in.readFully(payload);
+            if (type != ServiceTunnel.PING) {
+                return new Frame(type, stream, payload);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static class Frame {
+        private final byte type;
+        private final int stream;
+        private final byte[] payload;
+
+        Frame(byte type, int stream, byte[] payload) {
+            this.type = type;
+            this.stream = stream;
+            this.payload = payload;
+        }
+
+        Json json() {
+            return Json.parse(new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package io.slingr.services.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+
+    @Test
+    void concurrentCallsWithSameKeyAreCollapsed() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(finish);
+            return "result";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return "other";
+        }));
+        waitCollapsed(1);
+
+        finish.countDown();
+        assertEquals("result", first.get(5, TimeUnit.SECONDS));
+        assertEquals("result", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.stats().longInteger("inFlight"));
+    }
+
+    @Test
+    void collapsedCallersReceiveTheSameException() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("service not available");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            started.countDown();
+            await(finish);
+            throw failure;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> "other"));
+        waitCollapsed(1);
+
+        finish.countDown();
+        assertSame(failure, assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS)).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS)).getCause());
+    }
+
+    @Test
+    void differentKeysAndLaterCallsAreExecuted() {
+        assertEquals("a", singleFlight.execute("a", () -> "a"));
+        assertEquals("b", singleFlight.execute("b", () -> "b"));
+        assertEquals("c", singleFlight.execute("a", () -> "c"));
+
+        assertEquals(3, singleFlight.stats().longInteger("executed"));
+        assertEquals(0, singleFlight.stats().longInteger("collapsed"));
+    }
+
+    private void waitCollapsed(long expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.stats().longInteger("collapsed") < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, singleFlight.stats().longInteger("collapsed"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
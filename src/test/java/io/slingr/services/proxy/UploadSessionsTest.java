@@ -0,0 +1,151 @@
+package io.slingr.services.proxy;
+
+import io.slingr.services.exceptions.ServiceException;
+import io.slingr.services.utils.Json;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadSessionsTest {
+    private static final int CHUNK_SIZE = UploadSessions.MIN_CHUNK_SIZE;
+
+    private final byte[] content = randomBytes(CHUNK_SIZE * 2 + 10);
+    private final UploadSessions uploadSessions;
+
+    UploadSessionsTest() throws IOException {
+        uploadSessions = new UploadSessions();
+    }
+
+    @AfterEach
+    void stop() {
+        uploadSessions.stop();
+    }
+
+    @Test
+    void chunksInAnyOrderAreAssembled() {
+        final String uploadId = create(DigestUtils.sha256Hex(content));
+        put(uploadId, 2, null);
+        put(uploadId, 0, null);
+
+        assertEquals(List.of(1), uploadSessions.status(uploadId).json("missing").toList());
+        put(uploadId, 1, "sha-256=:" + Base64.encodeBase64String(DigestUtils.sha256(chunk(1))) + ":");
+
+        final Json file = uploadSessions.commit(uploadId, session -> Json.map().set("content", read(session)));
+        assertArrayEquals(content, (byte[]) file.object("content"));
+        assertEquals(1, uploadSessions.stats().longInteger("committed"));
+        assertThrows(ServiceException.class, () -> uploadSessions.status(uploadId));
+    }
+
+    @Test
+    void invalidChunksAreRejectedAndCanBeSentAgain() {
+        final String uploadId = create(null);
+
+        assertThrows(ServiceException.class, () -> put(uploadId, 0, DigestUtils.sha256Hex("other")));
+        assertThrows(ServiceException.class, () -> uploadSessions.putChunk(uploadId, 2, new ByteArrayInputStream(new byte[3]), null));
+        assertThrows(ServiceException.class, () -> uploadSessions.putChunk(uploadId, 3, new ByteArrayInputStream(new byte[3]), null));
+        assertEquals(3, uploadSessions.status(uploadId).json("missing").size());
+
+        put(uploadId, 0, DigestUtils.sha256Hex(chunk(0)));
+        assertEquals(1, uploadSessions.status(uploadId).integer("received"));
+    }
+
+    @Test
+    void commitNeedsEveryChunkAndMatchingChecksum() {
+        final String uploadId = create(DigestUtils.sha256Hex("other"));
+        put(uploadId, 0, null);
+        put(uploadId, 1, null);
+
+        assertThrows(ServiceException.class, () -> uploadSessions.commit(uploadId, session -> Json.map()));
+        put(uploadId, 2, null);
+        assertThrows(ServiceException.class, () -> uploadSessions.commit(uploadId, session -> Json.map()));
+        assertEquals(3, uploadSessions.status(uploadId).integer("received"));
+    }
+
+    @Test
+    void chunksAndCommitsAreRejectedWhileCommitting() throws Exception {
+        final String uploadId = create(null);
+        for (int i = 0; i < 3; i++) {
+            put(uploadId, i, null);
+        }
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final CompletableFuture<Json> commit = CompletableFuture.supplyAsync(() -> uploadSessions.commit(uploadId, session -> {
+            uploading.countDown();
+            await(finish);
+            return Json.map().set("fileId", "1");
+        }));
+        assertTrue(uploading.await(5, TimeUnit.SECONDS));
+
+        assertThrows(ServiceException.class, () -> put(uploadId, 1, null));
+        assertThrows(ServiceException.class, () -> uploadSessions.commit(uploadId, session -> Json.map()));
+        assertThrows(ServiceException.class, () -> uploadSessions.abort(uploadId));
+
+        finish.countDown();
+        assertEquals("1", commit.get(5, TimeUnit.SECONDS).string("fileId"));
+        assertThrows(ServiceException.class, () -> put(uploadId, 1, null));
+    }
+
+    @Test
+    void failedCommitCanBeRetried() {
+        final String uploadId = create(null);
+        for (int i = 0; i < 3; i++) {
+            put(uploadId, i, null);
+        }
+
+        assertThrows(IllegalStateException.class, () -> uploadSessions.commit(uploadId, session -> {
+            throw new IllegalStateException("application not available");
+        }));
+        put(uploadId, 1, null);
+        assertEquals("1", uploadSessions.commit(uploadId, session -> Json.map().set("fileId", "1")).string("fileId"));
+    }
+
+    private String create(String checksum) {
+        return uploadSessions.create("file.bin", "application/octet-stream", content.length, CHUNK_SIZE, checksum).string("uploadId");
+    }
+
+    private void put(String uploadId, int index, String digest) {
+        uploadSessions.putChunk(uploadId, index, new ByteArrayInputStream(chunk(index)), digest);
+    }
+
+    private byte[] chunk(int index) {
+        return Arrays.copyOfRange(content, index * CHUNK_SIZE, Math.min(content.length, (index + 1) * CHUNK_SIZE));
+    }
+
+    private static byte[] read(UploadSessions.Session session) {
+        try (InputStream is = session.open()) {
+            return is.readAllBytes();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}